@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.scm.api.SCMHead;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zalando.jenkins.multibranch.BranchId;
+
+/**
+ * Lookups of {@link BranchNameMapperImpl}: mapping project names and heads to the interned 
+ * {@link BranchId}, and back. The canonical ids are strongly referenced during the benchmark, 
+ * as they are by the repository, so the lookups hit the interning map. Four threads contend 
+ * for the interning map as the fetch threads of several sources do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Threads(4)
+@Fork(1)
+public class BranchNameMapperBenchmark {
+	
+	@Param({"10", "100", "1000", "10000", "100000"})
+	public int branches;
+	
+	private Path directory;
+	private BranchNameMapperImpl mapper;
+	private String[] projectNames;
+	private SCMHead[] heads;
+	private BranchId[] ids;
+	
+	@State(Scope.Thread)
+	public static class Cursor{
+		private int next;
+		int next(final int length){
+			next = (next+1) % length;
+			return next;
+		}
+	}
+
+	@Setup
+	public void setUp() throws IOException{
+		directory = Files.createTempDirectory("branches");
+		mapper = new BranchNameMapperImpl(directory, "template");
+		projectNames = new String[branches];
+		heads = new SCMHead[branches];
+		ids = new BranchId[branches];
+		for(int i=0; i<branches; i++){
+			projectNames[i] = "f-b"+i;
+			heads[i] = new SCMHead("feature/b"+i);
+			ids[i] = mapper.fromSCMHead(heads[i]);
+		}
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException{
+		Files.deleteIfExists(directory);
+	}
+
+	@Benchmark
+	public BranchId fromProjectName(final Cursor cursor){
+		return mapper.fromProjectName(projectNames[cursor.next(branches)]);
+	}
+
+	@Benchmark
+	public BranchId fromSCMHead(final Cursor cursor){
+		return mapper.fromSCMHead(heads[cursor.next(branches)]);
+	}
+
+	@Benchmark
+	public String toProjectName(final Cursor cursor){
+		return ids[cursor.next(branches)].toProjectName();
+	}
+
+}
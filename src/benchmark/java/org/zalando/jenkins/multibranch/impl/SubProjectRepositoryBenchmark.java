@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.impl;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import hudson.Util;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ItemGroup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import jenkins.scm.api.SCMHead;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zalando.jenkins.multibranch.BranchId;
+import org.zalando.jenkins.multibranch.SubProject;
+
+import com.google.common.base.Function;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableSortedSet;
+
+/**
+ * Reads of {@link SubProjectRepositoryImpl} (a single sub-project, and the sorted view of all 
+ * sub-projects) with and without a concurrent writer, which deletes and creates sub-projects 
+ * one after the other. Every write invalidates the view, so the readers of the view rebuild it.
+ * The delegates are a single mock, so neither Jenkins nor the disk is involved and only the 
+ * locking and the bookkeeping of the repository are measured.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class SubProjectRepositoryBenchmark {
+	
+	//Strongly referenced, otherwise the level would be lost when the logger is collected:
+	private static final java.util.logging.Logger JUL = java.util.logging.Logger.getLogger("org.zalando.jenkins.multibranch");
+	static{
+		//The repository logs each creation and deletion:
+		JUL.setLevel(Level.WARNING);
+	}
+	
+	@Param({"10", "100", "1000", "10000", "100000"})
+	public int branches;
+	
+	private Path directory;
+	private SubProjectRepositoryImpl<ItemGroup<FreeStyleProject>,FreeStyleProject,FreeStyleBuild> repository;
+	private BranchId[] ids;
+	
+	@State(Scope.Thread)
+	public static class Cursor{
+		private int next;
+		int next(final int length){
+			next = (next+1) % length;
+			return next;
+		}
+	}
+
+	@Setup
+	public void setUp() throws Exception{
+		//Each trial needs its own directory, because only one repository may use a directory:
+		directory = Files.createTempDirectory("repository");
+		@SuppressWarnings("unchecked")
+		final ItemGroup<FreeStyleProject> parent = mock(ItemGroup.class);
+		when(parent.getFullName()).thenReturn(directory.getFileName().toString());
+		final FreeStyleProject delegate = mock(FreeStyleProject.class);
+		final BranchNameMapperImpl mapper = new BranchNameMapperImpl(directory.resolve("branches"), "template");
+		repository = new SubProjectRepositoryImpl<ItemGroup<FreeStyleProject>,FreeStyleProject,FreeStyleBuild>(
+				directory, FreeStyleProject.class, parent, 
+				directory.resolve("branches"), directory.resolve("template"), "template", 
+				mapper, 
+				new Function<String,FreeStyleProject>(){
+					@Override
+					public FreeStyleProject apply(final String name) {
+						return delegate;
+					}}, 
+				Suppliers.ofInstance(Boolean.FALSE));
+		ids = new BranchId[branches];
+		for(int i=0; i<branches; i++){
+			ids[i] = mapper.fromSCMHead(new SCMHead("feature/b"+i));
+			repository.createNewSubProject(ids[i]);
+		}
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException{
+		Util.deleteRecursive(directory.toFile());
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(2)
+	public SubProject<FreeStyleProject> contendedGetProject(final Cursor cursor){
+		return repository.getOptionalProject(ids[cursor.next(branches)]);
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public ImmutableSortedSet<SubProject<FreeStyleProject>> contendedGetProjects(){
+		return repository.getProjects();
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public SubProject<FreeStyleProject> contendedDeleteAndCreate(final Cursor cursor) throws Exception{
+		final BranchId branch = ids[cursor.next(branches)];
+		repository.delete(branch);
+		return repository.createNewSubProject(branch);
+	}
+
+	@Benchmark
+	@Group("uncontended")
+	@GroupThreads(2)
+	public SubProject<FreeStyleProject> uncontendedGetProject(final Cursor cursor){
+		return repository.getOptionalProject(ids[cursor.next(branches)]);
+	}
+
+	@Benchmark
+	@Group("uncontended")
+	@GroupThreads(1)
+	public ImmutableSortedSet<SubProject<FreeStyleProject>> uncontendedGetProjects(){
+		return repository.getProjects();
+	}
+
+}
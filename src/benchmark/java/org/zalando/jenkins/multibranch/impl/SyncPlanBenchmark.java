@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.scm.api.SCMHead;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zalando.jenkins.multibranch.BranchId;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+
+/**
+ * The reconciliation of the fetched branches with the existing sub-projects 
+ * ({@link SyncPlan#compute}): 5% of the existing branches have been removed and as many 
+ * new ones have been added.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class SyncPlanBenchmark {
+	
+	private static final int CHURN_PERCENT = 5;
+	
+	@Param({"10", "100", "1000", "10000", "100000"})
+	public int branches;
+	
+	private Path directory;
+	private ImmutableSortedMap<BranchId,String> sourceIds;
+	private ImmutableSortedSet<BranchId> existing;
+
+	@Setup
+	public void setUp() throws IOException{
+		directory = Files.createTempDirectory("branches");
+		final BranchNameMapperImpl mapper = new BranchNameMapperImpl(directory, "template");
+		final int churn = Math.max(1, branches*CHURN_PERCENT/100);
+		final ImmutableSortedMap.Builder<BranchId,String> fetched = ImmutableSortedMap.naturalOrder();
+		final ImmutableSortedSet.Builder<BranchId> projects = ImmutableSortedSet.naturalOrder();
+		for(int i=0; i<branches+churn; i++){
+			final BranchId branch = mapper.fromSCMHead(new SCMHead("feature/b"+i));
+			if(i>=churn) fetched.put(branch, "source");
+			if(i<branches) projects.add(branch);
+		}
+		sourceIds = fetched.build();
+		existing = projects.build();
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException{
+		Files.deleteIfExists(directory);
+	}
+
+	/**
+	 * @return the {@link SyncPlan}, typed as Object because the generated benchmark classes are 
+	 * in another package.
+	 */
+	@Benchmark
+	public Object compute(){
+		return SyncPlan.compute(sourceIds, existing, true, SyncJournal.Recovery.NONE, "stamp");
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.util;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+
+/**
+ * {@link AgeFilter#apply(Iterable)} configured as in the synchronization (at most 50 branches, 
+ * minimum age 24 hours), on branches whose ages are exponentially distributed (mean 30 days).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class AgeFilterBenchmark {
+	
+	@Param({"10", "100", "1000", "10000", "100000"})
+	public int branches;
+	
+	private ImmutableSortedSet<String> items;
+	private AgeFilter<ImmutableSortedSet<String>,String> filter;
+
+	@Setup
+	public void setUp(){
+		final Random random = new Random(1L);
+		final long now = System.currentTimeMillis();
+		final long meanAge = TimeUnit.DAYS.toMillis(30);
+		final Map<String,Date> lastChanges = new HashMap<>();
+		for(int i=0; i<branches; i++){
+			lastChanges.put("feature/b"+i, new Date(now - (long) (-Math.log(1d-random.nextDouble()) * meanAge)));
+		}
+		items = ImmutableSortedSet.copyOf(lastChanges.keySet());
+		filter = new AgeFilter<>(Functions.forMap(lastChanges, null), null, 50, Duration.of(24, TimeUnit.HOURS));
+	}
+
+	@Benchmark
+	public ImmutableSet<String> apply(){
+		return filter.apply(items);
+	}
+
+}
@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Acquiring and releasing a {@link DiagnosticLock}: uncontended, contended by four threads, and 
+ * striped like the sub-project repository, where each thread locks the stripe of a different 
+ * branch out of the given number of branches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class DiagnosticLockBenchmark {
+	
+	private static final int STRIPES = 16;
+	
+	@Param({"10", "100", "1000", "10000", "100000"})
+	public int branches;
+	
+	private DiagnosticLock lock;
+	private DiagnosticLock[] stripes;
+	private String[] branchNames;
+	
+	@State(Scope.Thread)
+	public static class Cursor{
+		private int next;
+		int next(final int length){
+			next = (next+1) % length;
+			return next;
+		}
+	}
+
+	@Setup
+	public void setUp(){
+		final Duration timeout = Duration.of(30, TimeUnit.SECONDS);
+		lock = new DiagnosticLock("benchmark", timeout);
+		stripes = new DiagnosticLock[STRIPES];
+		for(int i=0; i<STRIPES; i++) stripes[i] = new DiagnosticLock("benchmark#"+i, timeout);
+		branchNames = new String[branches];
+		for(int i=0; i<branches; i++) branchNames[i] = "f-b"+i;
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void uncontended(){
+		lock.lock();
+		lock.unlock();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void contended(){
+		lock.lock();
+		lock.unlock();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void striped(final Cursor cursor){
+		final String branch = branchNames[cursor.next(branchNames.length)];
+		final DiagnosticLock stripe = stripes[(branch.hashCode() & Integer.MAX_VALUE) % STRIPES];
+		stripe.lock();
+		stripe.unlock();
+	}
+
+}
@@ -68,7 +68,7 @@ import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
-import java.lang.reflect.Field;
+import java.lang.ref.WeakReference;
 import java.net.URLEncoder;
 import java.nio.file.Path;
 import java.text.ParseException;
@@ -78,6 +78,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
@@ -101,12 +102,15 @@ import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.interceptor.RequirePOST;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.zalando.jenkins.multibranch.BranchesSynchronizer.SyncPriority;
 import org.zalando.jenkins.multibranch.SubProjectRepository.ProjectDoesNotExixtException;
 import org.zalando.jenkins.multibranch.impl.StaticWiring;
+import org.zalando.jenkins.multibranch.util.ProjectUtils;
 
 import antlr.ANTLRException;
 
 import com.google.common.base.Function;
+import com.google.common.base.Supplier;
 
 
 public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B> & TopLevelItem, B extends AbstractBuild<P, B>>
@@ -123,6 +127,7 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 	//Saved state:
 	private volatile boolean allowAnonymousSync;
 	private volatile SCMSource scmSource;
+	private volatile List<SCMSource> additionalScmSources;
 
 	@SuppressWarnings("unused")
 	private List<String> disabledSubProjects;
@@ -130,6 +135,14 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 
 	private volatile String primaryView;
 	
+	private volatile NewBranchBuildPolicy.Mode newBranchBuildMode;
+	private volatile Integer maxNewBranchBuildsPerMinute;
+	private volatile boolean centralChangeDetection;
+	private volatile boolean adaptiveSyncInterval;
+	private volatile boolean archiveRemovedBranches;
+	private volatile Integer maxBuildHistoryBuilds;
+	private volatile Integer maxBuildHistoryMegabytes;
+	
 	
 	//Dependent variables:
 	private transient SCMSource scmSourceCache;
@@ -169,7 +182,7 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 	public void onLoad(final ItemGroup<? extends Item> parent, final String name)
 			throws IOException {
 		super.onLoad(parent, name);
-		new BranchProjectMigrator(getFullName(), getTemplateDir(), getBranchesDir(), isDisabled()).run();
+		new BranchProjectMigrator(getFullName(), getRootDir(), getTemplateDir(), getBranchesDir(), isDisabled()).run();
 		init();
 	}
 	
@@ -298,7 +311,10 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 //		}
 
 		// Will check triggers(), add & start default sync cron if not there
-		getSyncBranchesTrigger();
+		final SyncBranchesTrigger<?> syncBranchesTrigger = getSyncBranchesTrigger();
+		
+		//Half-applied operations of a sync interrupted by the last shutdown are completed right away:
+		if(wiring.getSynchronizer().recover()) syncBranchesTrigger.runNow();
 	}
 
 
@@ -373,6 +389,29 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 		return project==null?null:project.delegate();
 	}
 	
+	/**
+	 * Package-private for tests.
+	 */
+	SubProjectRepository<P> getSubProjectRepository(){
+		return getStaticWiring().getSubProjectRepository();
+	}
+
+	/**
+	 * Package-private for tests.
+	 */
+	BranchNameMapper getBranchNameMapper(){
+		return getStaticWiring().getBranchNameMapper();
+	}
+
+	/**
+	 * Like {@link #syncBranches(Path, SyncPriority)} with high priority, but unconditionally and 
+	 * returning the running synchronization. Package-private for tests.
+	 */
+	Future<Void> synchronizeBranches(final Path logFile){
+		return getStaticWiring().getSynchronizer().synchronizeBranches(getSCMSources(), getTemplate(), logFile, 
+				SyncPriority.HIGH);
+	}
+
 	private StaticWiring<ItemGroup<P>, P, B> getStaticWiring(){
 		StaticWiring<ItemGroup<P>, P, B> result = staticWiring;
 		if(result==null){
@@ -392,7 +431,32 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 							getTemplateDir().toPath(),
 						    TEMPLATE,
 						    subProjectFactory,
-						    MAX_AGE
+						    MAX_AGE,
+						    new Supplier<NewBranchBuildPolicy>(){
+								@Override
+								public NewBranchBuildPolicy get() {
+									return getNewBranchBuildPolicy();
+								}
+						    },
+						    new Supplier<Boolean>(){
+								@Override
+								public Boolean get() {
+									return Boolean.valueOf(isCentralChangeDetection());
+								}
+						    },
+						    new Supplier<Boolean>(){
+								@Override
+								public Boolean get() {
+									return Boolean.valueOf(isAdaptiveSyncInterval());
+								}
+						    },
+						    new Supplier<Boolean>(){
+								@Override
+								public Boolean get() {
+									return Boolean.valueOf(isArchiveRemovedBranches());
+								}
+						    },
+						    new BuildHistoryBudgetSupplier(this)
 							);	
 				}
 				result = staticWiring;
@@ -402,6 +466,34 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 	}
 	
 	
+	/**
+	 * Used by the build history retention, which runs on the timer. Unlike an anonymous class, it 
+	 * does not keep the project reachable from the timer.
+	 */
+	private static final class BuildHistoryBudgetSupplier implements Supplier<BuildHistoryBudget>{
+		private final WeakReference<AbstractMultiBranchProject<?,?>> project;
+
+		BuildHistoryBudgetSupplier(final AbstractMultiBranchProject<?,?> project) {
+			this.project = new WeakReference<AbstractMultiBranchProject<?,?>>(project);
+		}
+
+		@Override
+		public BuildHistoryBudget get() {
+			final AbstractMultiBranchProject<?,?> p = project.get();
+			return p==null ? BuildHistoryBudget.UNLIMITED : p.getBuildHistoryBudget();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void performDelete() throws IOException, InterruptedException {
+		final StaticWiring<ItemGroup<P>, P, B> w = staticWiring;
+		if(w!=null) w.stop();
+		super.performDelete();
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * @throws IOException 
@@ -557,7 +649,10 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 		if (scmSource == null) {
 			return Collections.emptyList();
 		}
-		return Arrays.asList(scmSource);
+		final List<SCMSource> result = new ArrayList<>();
+		result.add(scmSource);
+		result.addAll(getAdditionalScmSources());
+		return result;
 	}
 
 	/**
@@ -566,9 +661,10 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 	@Override
 	@Nullable
 	public SCMSource getSCMSource(@Nullable final String sourceId) {
-		final SCMSource scmSource = getSCMSource();
-		if (scmSource != null && scmSource.getId().equals(sourceId)) {
-			return scmSource;
+		for(final SCMSource scmSource: getSCMSources()){
+			if (scmSource.getId().equals(sourceId)) {
+				return scmSource;
+			}
 		}
 		return null;
 	}
@@ -578,7 +674,7 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 	 */
 	@Override
 	public void onSCMSourceUpdated(final SCMSource source) {
-		getSyncBranchesTrigger().run();
+		getSyncBranchesTrigger().runNow();
 	}
 
 	/**
@@ -613,7 +709,10 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 		return scmSourceCache;
 	}
 	
-	private synchronized void setSCMSource(final SCMSource scmSource) {		
+	/**
+	 * Package-private for tests.
+	 */
+	synchronized void setSCMSource(final SCMSource scmSource) {		
 		if(scmSource.getOwner()!=this){
 			scmSource.setOwner(this);
 		}
@@ -621,6 +720,23 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 		this.scmSourceCache = scmSource;		
 	}
 
+	/**
+	 * Returns the sources fetched in addition to the primary SCMSource. Used by configure-entries.jelly.
+	 * If a branch exists in several sources, the primary source wins, then the additional
+	 * sources in the configured order.
+	 */
+	public List<SCMSource> getAdditionalScmSources() {
+		final List<SCMSource> sources = additionalScmSources;
+		if(sources==null) return Collections.emptyList();
+		for(final SCMSource source: sources){
+			//sources from persistence mechanism
+			if(source.getOwner()!=this){
+				source.setOwner(this);
+			}
+		}
+		return Collections.unmodifiableList(sources);
+	}
+
 
 	/**
 	 * Gets whether anonymous sync is allowed from <code>${JOB_URL}/syncBranches</code>
@@ -640,6 +756,81 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 		save();
 	}
 
+	/**
+	 * Returns how builds are triggered for newly detected branches.  Used by
+	 * configure-entries.jelly.
+	 */
+	public NewBranchBuildPolicy.Mode getNewBranchBuildMode() {
+		final NewBranchBuildPolicy.Mode mode = newBranchBuildMode;
+		return mode==null ? NewBranchBuildPolicy.DEFAULT.mode() : mode;
+	}
+
+	/**
+	 * Returns the maximum number of builds per minute that are triggered for
+	 * new branches in staggered mode.  Used by configure-entries.jelly.
+	 */
+	public int getMaxNewBranchBuildsPerMinute() {
+		final Integer max = maxNewBranchBuildsPerMinute;
+		return max==null || max.intValue()<1 ? NewBranchBuildPolicy.DEFAULT_MAX_BUILDS_PER_MINUTE : max.intValue();
+	}
+
+	/**
+	 * Gets whether changes are detected by the branch sync instead of by the SCM
+	 * polling of the individual sub-projects.  Used by configure-entries.jelly.
+	 */
+	public boolean isCentralChangeDetection() {
+		return centralChangeDetection;
+	}
+
+	/**
+	 * Gets whether periodic syncs are done less often while they find no changes.  Used by
+	 * configure-entries.jelly.
+	 */
+	public boolean isAdaptiveSyncInterval() {
+		return adaptiveSyncInterval;
+	}
+
+	/**
+	 * Gets whether the sub-projects of removed branches are archived (and restored when the
+	 * branch comes back) instead of deleted.  Used by configure-entries.jelly.
+	 */
+	public boolean isArchiveRemovedBranches() {
+		return archiveRemovedBranches;
+	}
+
+	/**
+	 * Gets the maximum number of builds kept over all sub-projects (0: unlimited).  Used by
+	 * configure-entries.jelly.
+	 */
+	public int getMaxBuildHistoryBuilds() {
+		final Integer max = maxBuildHistoryBuilds;
+		return max==null ? 0 : max.intValue();
+	}
+
+	/**
+	 * Gets the maximum disk usage of the builds of all sub-projects in MB (0: unlimited).  Used by
+	 * configure-entries.jelly.
+	 */
+	public int getMaxBuildHistoryMegabytes() {
+		final Integer max = maxBuildHistoryMegabytes;
+		return max==null ? 0 : max.intValue();
+	}
+
+	public BuildHistoryBudget getBuildHistoryBudget() {
+		return new BuildHistoryBudget(getMaxBuildHistoryBuilds(), getMaxBuildHistoryMegabytes());
+	}
+
+	public NewBranchBuildPolicy getNewBranchBuildPolicy() {
+		return new NewBranchBuildPolicy(getNewBranchBuildMode(), getMaxNewBranchBuildsPerMinute());
+	}
+
+	/**
+	 * Used by configure-entries.jelly.
+	 */
+	public static List<NewBranchBuildPolicy.Mode> getNewBranchBuildModes() {
+		return Arrays.asList(NewBranchBuildPolicy.Mode.values());
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -727,7 +918,7 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 		if (!allowAnonymousSync) {
 			checkPermission(CONFIGURE);
 		}
-		getSyncBranchesTrigger().run();
+		getSyncBranchesTrigger().runNow();
 	}
 
 	
@@ -751,6 +942,9 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 		makeDisabled(req.getParameter("disable") != null);
 
 		allowAnonymousSync = req.getSubmittedForm().has("allowAnonymousSync");
+		centralChangeDetection = req.getSubmittedForm().has("centralChangeDetection");
+		adaptiveSyncInterval = req.getSubmittedForm().has("adaptiveSyncInterval");
+		archiveRemovedBranches = req.getSubmittedForm().has("archiveRemovedBranches");
 
 		try {
 			final JSONObject json = req.getSubmittedForm();
@@ -770,16 +964,7 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 			final CopyOnWriteList<JobProperty<? super P>> properties = properties();
 			properties.clear();
 			for (@SuppressWarnings("rawtypes") final JobProperty p : t) {
-				// Hack to set property owner since it is not exposed
-				// p.setOwner(this)
-				try {
-					final Field f = JobProperty.class.getDeclaredField("owner");
-					f.setAccessible(true);
-					f.set(p, this);
-				} catch (final Throwable e) {
-					LOG.warn("Unable to set job property owner", e);
-				}
-				// End hack
+				ProjectUtils.setOwner(p, this);
 				//noinspection unchecked
 				properties.add(p);
 			}
@@ -794,6 +979,24 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 
 			primaryView = json.getString("primaryView");
 
+			final String buildMode = Util.fixEmpty(json.optString("newBranchBuildMode"));
+			newBranchBuildMode = buildMode==null ? null : NewBranchBuildPolicy.Mode.valueOf(buildMode);
+			final int maxBuildsPerMinute = json.optInt("maxNewBranchBuildsPerMinute", 
+					NewBranchBuildPolicy.DEFAULT_MAX_BUILDS_PER_MINUTE);
+			if(maxBuildsPerMinute<1) throw new Descriptor.FormException(
+					"The maximum number of new branch builds per minute must be positive.", 
+					"maxNewBranchBuildsPerMinute");
+			maxNewBranchBuildsPerMinute = maxBuildsPerMinute;
+			
+			final int maxBuilds = json.optInt("maxBuildHistoryBuilds", 0);
+			if(maxBuilds<0) throw new Descriptor.FormException(
+					"The maximum number of builds must not be negative.", "maxBuildHistoryBuilds");
+			maxBuildHistoryBuilds = maxBuilds;
+			final int maxMegabytes = json.optInt("maxBuildHistoryMegabytes", 0);
+			if(maxMegabytes<0) throw new Descriptor.FormException(
+					"The maximum disk usage of builds must not be negative.", "maxBuildHistoryMegabytes");
+			maxBuildHistoryMegabytes = maxMegabytes;
+
 			SCMSource scmSource;
 			final JSONObject scmSourceJson = json.optJSONObject("scmSource");
 			if (scmSourceJson == null) {
@@ -807,6 +1010,13 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 				scmSource.setOwner(this);
 			}
 			setSCMSource(scmSource);
+			
+			final List<SCMSource> additionalSources = Descriptor.newInstancesFromHeteroList(
+					req, json, "additionalScmSources", getSCMSourceDescriptors(true));
+			for(final SCMSource source: additionalSources){
+				source.setOwner(this);
+			}
+			additionalScmSources = additionalSources.isEmpty() ? null : new ArrayList<>(additionalSources);
 
 			final P templateProject = getTemplate();
 			templateProject.doConfigSubmit(
@@ -861,7 +1071,7 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 //		new Thread(getName()+"-sync-branches"){
 //			@Override
 //			public void run() {
-		syncBranchesTrigger.run();
+		syncBranchesTrigger.runNow();
 //			}			
 //		}.start();
 	}
@@ -935,13 +1145,40 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 	 * @throws IOException 
 	 */
 	public void syncBranches(final Path logFile) throws IOException {
+		syncBranches(logFile, SyncPriority.NORMAL);
+	}
+
+	/**
+	 * @return true if a branch sync is running.  Used by the sync branches log.
+	 */
+	public boolean isSyncInProgress() {
+		return getStaticWiring().getSynchronizer().isInProgress();
+	}
+
+	/**
+	 * Stops the running branch sync at the next branch boundary.
+	 * @return false if no sync is running.
+	 */
+	public boolean cancelSync() {
+		checkPermission(CONFIGURE);
+		return getStaticWiring().getSynchronizer().cancel();
+	}
+
+	/**
+	 * Same as {@link #syncBranches(Path)}, but with the given priority in the 
+	 * instance-wide sync queue.
+	 */
+	public void syncBranches(final Path logFile, final SyncPriority priority) throws IOException {
 //		boolean startSync;
 		if (isDisabled()) {
 //			path.getLogger().println("Project disabled.");
 //			startSync = false;
 		}
+		else if(priority==SyncPriority.NORMAL && adaptiveSyncInterval && !getStaticWiring().isPeriodicSyncDue()){
+			LOG.debug("Skipped periodic sync of {}: no changes in the recent syncs.", getFullName());
+		}
 		else{
-			getStaticWiring().getSynchronizer().synchronizeBranches(getSCMSource(), getTemplate(), logFile);
+			getStaticWiring().getSynchronizer().synchronizeBranches(getSCMSources(), getTemplate(), logFile, priority);
 //			synchronized(this){
 //				//Ensure there is only one active sync thread at any time.
 //				//If there is a new request while a sync is in progress, 
@@ -1290,6 +1527,8 @@ implements TopLevelItem, ItemGroup<P>, ViewGroup, SCMSourceOwner {
 
 			// Direct memory reference comparison
 			if (item == template) {
+				parent.getStaticWiring().onTemplateSaved();
+
 				try {
 					if (!(template.getScm() instanceof NullSCM)) {
 						template.setScm(new NullSCM());
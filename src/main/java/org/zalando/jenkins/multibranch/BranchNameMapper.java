@@ -41,4 +41,10 @@ public interface BranchNameMapper {
 
 	boolean directorySupported(Path dir);
 
+	/**
+	 * @return a glob pattern matching the supported branch names. It can be used to restrict the 
+	 * branches listed by an SCM source.
+	 */
+	String branchNamePattern();
+
 }
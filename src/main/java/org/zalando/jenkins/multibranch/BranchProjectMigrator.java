@@ -26,35 +26,111 @@ package org.zalando.jenkins.multibranch;
 import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
 import hudson.Util;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jenkins.model.Jenkins;
 
-import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.zalando.jenkins.multibranch.util.Duration;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+/**
+ * Migrates sub-projects and builds created by the original plugin. The files are processed 
+ * line by line (all replaced elements are on lines of their own) and are only written if
+ * something changed. The build directories are processed in parallel. After a successful
+ * run a marker file is written into the project directory, so later runs are skipped.
+ * Files are decoded with the encoding declared in their XML prolog. Files that cannot be 
+ * decoded with it are processed byte by byte (all patterns are ASCII).
+ */
 class BranchProjectMigrator implements Runnable{
 	
 	private static final Logger LOG = LoggerFactory.getLogger(BranchProjectMigrator.class);
+	
+	static final String MARKER_FILE_NAME = "branch-projects-migrated";
+	private static final String MARKER_VERSION = "1";
+	
+	private static final Charset CHARSET = StandardCharsets.UTF_8;
+	
+	/**
+	 * Maps each byte to one character, so decoding never fails and writing restores the original bytes.
+	 */
+	private static final Charset BYTES = StandardCharsets.ISO_8859_1;
+	
+	private static final Pattern ENCODING = Pattern.compile("^<\\?xml[^>]*\\sencoding=[\"']([A-Za-z0-9._\\-]+)[\"']");
+	
+	private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	private static final List<LineRule> CONFIG_RULES = ImmutableList.of(
+			new LineRule(
+				"^<(freestyle-branch-project|com\\.github\\.mjdetullio\\.jenkins\\.plugins\\.multibranch\\.FreeStyleBranchProject)( plugin=\".*?\")?>$",
+				"<project>", true),
+			new LineRule(
+				"^</(freestyle-branch-project|com\\.github\\.mjdetullio\\.jenkins\\.plugins\\.multibranch\\.FreeStyleBranchProject)>$",
+				"</project>", true),
+			new LineRule("^  <template>(true|false)</template>$", null, true)
+			);
+
+	/*
+	 * Previously, sub-projects would reference the parent to see if
+	 * they were disabled.  If disabled, this needs to be propagated down to the
+	 * sub-projects.
+	 */
+	private static final List<LineRule> DISABLED_CONFIG_RULES = ImmutableList.<LineRule>builder()
+			.addAll(CONFIG_RULES)
+			.add(new LineRule("^  <disabled>false</disabled>$", "  <disabled>true</disabled>", true))
+			.build();
+
+	private static final List<LineRule> BUILD_RULES = ImmutableList.of(
+			new LineRule(
+				"^<(freestyle-branch-build|com\\.github\\.mjdetullio\\.jenkins\\.plugins\\.multibranch\\.FreeStyleBranchBuild)( plugin=\".*?\")?>$",
+				"<build>", true),
+			new LineRule(
+				"^</(freestyle-branch-build|com\\.github\\.mjdetullio\\.jenkins\\.plugins\\.multibranch\\.FreeStyleBranchBuild)>$",
+				"</build>", true),
+			new LineRule(
+				" class=\"(freestyle-branch-build|com\\.github\\.mjdetullio\\.jenkins\\.plugins\\.multibranch\\.FreeStyleBranchBuild)\"",
+				" class=\"build\"", false)
+			);
 
 	private final String fullName;
+	private final File rootDir;
 	private final File templateDir;
 	private final File branchesDir;
 	private final boolean isDisabled;
 	
 	
 
-	BranchProjectMigrator(final String fullName, final File templateDir,
+	BranchProjectMigrator(final String fullName, final File rootDir, final File templateDir,
 			final File branchesDir, final boolean isDisabled) {
 		super();
 		this.fullName = fullName;
+		this.rootDir = rootDir;
 		this.templateDir = templateDir;
 		this.branchesDir = branchesDir;
 		this.isDisabled = isDisabled;
@@ -64,109 +140,243 @@ class BranchProjectMigrator implements Runnable{
 
 	@Override
 	public void run() {
-//		if (disabledSubProjects == null) {
-//		disabledSubProjects = new PersistedList<String>(this);
-//	}
-
-	final List<File> subProjects = new ArrayList<File>();
-	subProjects.add(templateDir);
+		final Path marker = rootDir.toPath().resolve(MARKER_FILE_NAME);
+		if(isMigrated(marker)){
+			LOG.debug("Sub-projects of {} have already been migrated.", fullName);
+			return;
+		}
+		final Date start = new Date();
+		final List<Callable<Boolean>> tasks = new ArrayList<>();
+		
+		final List<File> subProjects = new ArrayList<File>();
+		subProjects.add(templateDir);
+	
+		final File[] files = branchesDir.listFiles();
+		if (files != null) {
+			subProjects.addAll(Arrays.asList(files));
+		}
+	
+		for (final File subProjectDir : subProjects) {
+			final File configFile = new File(subProjectDir, "config.xml");
+	
+			if (!subProjectDir.isDirectory() || !configFile.exists()
+					|| !configFile.isFile()) {
+				continue;
+			}
+	
+			tasks.add(migrationTask(configFile.toPath(), 
+					isDisabled ? DISABLED_CONFIG_RULES : CONFIG_RULES));
+	
+			final String branchFullName =
+					fullName + '/' + subProjectDir.getName();
+	
+			// Replacement mirrors jenkins.model.Jenkins#expandVariablesForDirectory
+			final File[] builds = new File(Util.replaceMacro(
+					Jenkins.getInstance().getRawBuildsDir(),
+					ImmutableMap.of(
+							"JENKINS_HOME",
+							Jenkins.getInstance().getRootDir().getPath(),
+							"ITEM_ROOTDIR", subProjectDir.getPath(),
+							"ITEM_FULLNAME", branchFullName,
+							"ITEM_FULL_NAME", branchFullName.replace(':', '$')
+					))).listFiles();
+	
+			if (builds == null) {
+				continue;
+			}
+	
+			for (final File buildDir : builds) {
+				final File buildFile = new File(buildDir, "build.xml");
+	
+				if (!buildDir.isDirectory() || !buildFile.exists()
+						|| !buildFile.isFile()) {
+					continue;
+				}
+	
+				tasks.add(migrationTask(buildFile.toPath(), BUILD_RULES));
+			}
+		}
+		
+		final boolean success = runAll(tasks);
+		LOG.info("Migration of {} files of {} took {}.", tasks.size(), fullName, Duration.since(start));
+		if(success) writeMarker(marker);
+		else LOG.warn("Migration of {} was incomplete. It will be repeated on next startup.", fullName);
+	}
 
-	final File[] files = branchesDir.listFiles();
-	if (files != null) {
-		subProjects.addAll(Arrays.asList(files));
+	private boolean runAll(final List<Callable<Boolean>> tasks) {
+		final ExecutorService executor = Executors.newFixedThreadPool(THREADS, 
+				new ThreadFactoryBuilder().setNameFormat(BranchProjectMigrator.class.getSimpleName()+"-%d")
+				.setDaemon(true).build());
+		boolean success = true;
+		try{
+			for(final Future<Boolean> result: executor.invokeAll(tasks)){
+				success &= result.get().booleanValue();
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOG.warn(format("Migration of {} has been interrupted.", fullName), e);
+			success = false;
+		} catch (final ExecutionException e) {
+			LOG.warn(format("Migration of {} failed.", fullName), e);
+			success = false;
+		} finally{
+			executor.shutdownNow();
+		}
+		return success;
 	}
 
-	for (final File subProjectDir : subProjects) {
-		final File configFile = new File(subProjectDir, "config.xml");
+	private static Callable<Boolean> migrationTask(final Path file, final List<LineRule> rules) {
+		return new Callable<Boolean>(){
+			@Override
+			public Boolean call() {
+				try {
+					if(migrate(file, rules)) LOG.debug("Migrated {}.", file);
+					return true;
+				} catch (final CharacterCodingException e) {
+					//Would fail the same way on every startup, so it must not prevent the marker:
+					LOG.warn(format("Skipping {}, because it cannot be decoded.", file), e);
+					return true;
+				} catch (final IOException e) {
+					LOG.warn(format("Unable to migrate {}", file), e);
+					return false;
+				}
+			}};
+	}
 
-		if (!subProjectDir.isDirectory() || !configFile.exists()
-				|| !configFile.isFile()) {
-			continue;
+	/**
+	 * @return true if the file has been changed.
+	 */
+	private static boolean migrate(final Path file, final List<LineRule> rules) throws IOException {
+		final Charset charset = declaredCharset(file);
+		try{
+			return migrate(file, rules, charset);
+		} catch(final CharacterCodingException e){
+			if(charset.equals(BYTES)) throw e;
+			LOG.warn("{} is not valid {}. Migrating it byte by byte.", file, charset);
+			return migrate(file, rules, BYTES);
 		}
+	}
 
-		try {
-			String xml = FileUtils.readFileToString(configFile);
-
-			xml = xml.replaceFirst(
-					"(?m)^<(freestyle-branch-project|com\\.github\\.mjdetullio\\.jenkins\\.plugins\\.multibranch\\.FreeStyleBranchProject)( plugin=\".*?\")?>$",
-					"<project>");
-			xml = xml.replaceFirst(
-					"(?m)^</(freestyle-branch-project|com\\.github\\.mjdetullio\\.jenkins\\.plugins\\.multibranch\\.FreeStyleBranchProject)>$",
-					"</project>");
-			xml = xml.replaceFirst(
-					"(?m)^  <template>(true|false)</template>(\r?\n)", "");
-
-			/*
-			 * Previously, sub-projects would reference the parent to see if
-			 * they were disabled.  Now the parent must track each
-			 * sub-project to see if it should stay disabled when the parent
-			 * is re-enabled.
-			 *
-			 * If disabled, this needs to be propagated down to the
-			 * sub-projects.
-			 */
-			if (isDisabled) {
-				if (!subProjectDir.equals(templateDir) && xml.matches(
-						"(?ms).+(\r?\n)  <disabled>true</disabled>(\r?\n).+")) {
-//					disabledSubProjects.add(
-//							rawDecode(subProjectDir.getName()));
+	private static boolean migrate(final Path file, final List<LineRule> rules, final Charset charset) throws IOException {
+		//First pass: read only, most files do not need to be changed.
+		if(!needsMigration(file, rules, charset)) return false;
+		//Second pass: stream into a temporary file and replace the original.
+		final Path tmpFile = file.resolveSibling(file.getFileName()+".migration.tmp");
+		try{
+			try(BufferedReader in = Files.newBufferedReader(file, charset);
+				BufferedWriter out = Files.newBufferedWriter(tmpFile, charset)){
+				final boolean[] applied = new boolean[rules.size()];
+				final StringBuilder line = new StringBuilder();
+				while(readLine(in, line)){
+					migrateLine(line, rules, applied, out);
 				}
-
-				xml = xml.replaceFirst(
-						"(?m)^  <disabled>false</disabled>$",
-						"  <disabled>true</disabled>");
 			}
+			Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally{
+			Files.deleteIfExists(tmpFile);
+		}
+		return true;
+	}
 
-			FileUtils.writeStringToFile(configFile, xml);
-		} catch (final IOException e) {
-			LOG.warn("Unable to migrate " + configFile, e);
+	/**
+	 * @return the encoding declared in the XML prolog, UTF-8 if there is none.
+	 */
+	private static Charset declaredCharset(final Path file) throws IOException {
+		final byte[] head = new byte[256];
+		int length = 0;
+		try(InputStream in = Files.newInputStream(file)){
+			int n;
+			while(length<head.length && (n = in.read(head, length, head.length-length))>0) length += n;
 		}
+		final Matcher matcher = ENCODING.matcher(new String(head, 0, length, BYTES));
+		if(!matcher.find()) return CHARSET;
+		try{
+			return Charset.forName(matcher.group(1));
+		} catch(final IllegalArgumentException e){
+			LOG.warn("{} declares the unknown encoding {}. Migrating it byte by byte.", file, matcher.group(1));
+			return BYTES;
+		}
+	}
 
-		final String branchFullName =
-				fullName + '/' + subProjectDir.getName();
-
-		// Replacement mirrors jenkins.model.Jenkins#expandVariablesForDirectory
-		final File[] builds = new File(Util.replaceMacro(
-				Jenkins.getInstance().getRawBuildsDir(),
-				ImmutableMap.of(
-						"JENKINS_HOME",
-						Jenkins.getInstance().getRootDir().getPath(),
-						"ITEM_ROOTDIR", subProjectDir.getPath(),
-						"ITEM_FULLNAME", branchFullName,
-						"ITEM_FULL_NAME", branchFullName.replace(':', '$')
-				))).listFiles();
-
-		if (builds == null) {
-			continue;
+	private static boolean needsMigration(final Path file, final List<LineRule> rules, final Charset charset) 
+			throws IOException {
+		try(BufferedReader in = Files.newBufferedReader(file, charset)){
+			String line;
+			while((line = in.readLine())!=null){
+				for(final LineRule rule: rules){
+					if(rule.pattern.matcher(line).find()) return true;
+				}
+			}
 		}
+		return false;
+	}
 
-		for (final File buildDir : builds) {
-			final File buildFile = new File(buildDir, "build.xml");
+	/**
+	 * Reads the next line including its line terminator.
+	 * @return false, if the end of the input has been reached.
+	 */
+	private static boolean readLine(final BufferedReader in, final StringBuilder line) throws IOException {
+		line.setLength(0);
+		int c;
+		while((c = in.read())!=-1){
+			line.append((char)c);
+			if(c=='\n') break;
+		}
+		return line.length()>0;
+	}
 
-			if (!buildDir.isDirectory() || !buildFile.exists()
-					|| !buildFile.isFile()) {
-				continue;
+	private static void migrateLine(final StringBuilder line, final List<LineRule> rules, 
+			final boolean[] applied, final Writer out) throws IOException {
+		int contentEnd = line.length();
+		while(contentEnd>0 && (line.charAt(contentEnd-1)=='\n' || line.charAt(contentEnd-1)=='\r')) contentEnd--;
+		String content = line.substring(0, contentEnd);
+		final String terminator = line.substring(contentEnd);
+		for(int i=0; i<rules.size(); i++){
+			final LineRule rule = rules.get(i);
+			if(!(rule.firstOnly && applied[i])){
+				final Matcher matcher = rule.pattern.matcher(content);
+				if(matcher.find()){
+					applied[i] = true;
+					if(rule.replacement==null) return; //Remove the whole line.
+					content = rule.firstOnly ? 
+							matcher.replaceFirst(rule.replacement) : matcher.replaceAll(rule.replacement);
+				}
 			}
+		}
+		out.write(content);
+		out.write(terminator);
+	}
 
-			try {
-				String xml = FileUtils.readFileToString(buildFile);
-
-				xml = xml.replaceFirst(
-						"(?m)^<(freestyle-branch-build|com\\.github\\.mjdetullio\\.jenkins\\.plugins\\.multibranch\\.FreeStyleBranchBuild)( plugin=\".*?\")?>$",
-						"<build>");
-				xml = xml.replaceFirst(
-						"(?m)^</(freestyle-branch-build|com\\.github\\.mjdetullio\\.jenkins\\.plugins\\.multibranch\\.FreeStyleBranchBuild)>$",
-						"</build>");
-				xml = xml.replaceAll(
-						" class=\"(freestyle-branch-build|com\\.github\\.mjdetullio\\.jenkins\\.plugins\\.multibranch\\.FreeStyleBranchBuild)\"",
-						" class=\"build\"");
-
-				FileUtils.writeStringToFile(buildFile, xml);
-			} catch (final IOException e) {
-				LOG.warn(format("Unable to migrate ", buildFile), e);
-			}
+	private static boolean isMigrated(final Path marker) {
+		try {
+			return Files.exists(marker) && 
+					MARKER_VERSION.equals(new String(Files.readAllBytes(marker), CHARSET).trim());
+		} catch (final IOException e) {
+			LOG.warn(format("Could not read {}.", marker), e);
+			return false;
+		}
+	}
+
+	private void writeMarker(final Path marker) {
+		try {
+			Files.write(marker, MARKER_VERSION.getBytes(CHARSET));
+		} catch (final IOException e) {
+			LOG.warn(format("Could not write {}. Migration will be repeated on next startup.", marker), e);
+		}
+	}
+
+	private static final class LineRule{
+		private final Pattern pattern;
+		private final String replacement;
+		private final boolean firstOnly;
+		/**
+		 * @param replacement null means that matching lines are removed.
+		 */
+		private LineRule(final String regex, final String replacement, final boolean firstOnly) {
+			pattern = Pattern.compile(regex);
+			this.replacement = replacement;
+			this.firstOnly = firstOnly;
 		}
 	}
-}
 
 }
@@ -24,6 +24,7 @@
 package org.zalando.jenkins.multibranch;
 
 import java.nio.file.Path;
+import java.util.List;
 import java.util.concurrent.Future;
 
 import jenkins.scm.api.SCMSource;
@@ -33,5 +34,36 @@ import jenkins.scm.api.SCMSource;
  */
 public interface BranchesSynchronizer<P>{
 	
-Future<Void> synchronizeBranches(final SCMSource scmSource, final P templateProject, final Path logFile);
+/**
+ * The priority of a synchronization request. Higher priorities come first.
+ */
+enum SyncPriority {
+	/** Requested by a user or an SCM event. */
+	HIGH,
+	/** Requested by the periodic trigger. */
+	NORMAL
+}
+
+Future<Void> synchronizeBranches(final List<SCMSource> scmSources, final P templateProject, final Path logFile, 
+		final SyncPriority priority);
+
+/**
+ * @return true if a synchronization is running.
+ */
+boolean isInProgress();
+
+/**
+ * Stops the running synchronization at the next branch boundary. The branches not processed 
+ * are processed first in the next synchronization.
+ * @return false if no synchronization is running.
+ */
+boolean cancel();
+
+/**
+ * Reads the journal of a synchronization interrupted by the last shutdown. Its unfinished 
+ * branches are processed first by the next synchronization. Called once the sub-projects 
+ * have been loaded.
+ * @return true if there are unfinished operations, so a synchronization should be started now.
+ */
+boolean recover();
 }
@@ -0,0 +1,64 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch;
+
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+
+/**
+ * Limits the build history of all sub-projects of a multi-branch project together, by number 
+ * of builds and/or by disk usage. A limit of 0 means unlimited.
+ */
+public final class BuildHistoryBudget {
+	
+	public static final BuildHistoryBudget UNLIMITED = new BuildHistoryBudget(0, 0);
+	
+	private final int maxBuilds;
+	private final int maxMegabytes;
+	
+	public BuildHistoryBudget(final int maxBuilds, final int maxMegabytes) {
+		if(maxBuilds<0 || maxMegabytes<0) throw new IllegalArgumentException(
+				format("The limits must not be negative (are {} builds, {} MB).", maxBuilds, maxMegabytes));
+		this.maxBuilds = maxBuilds;
+		this.maxMegabytes = maxMegabytes;
+	}
+
+	public int maxBuilds() {
+		return maxBuilds;
+	}
+
+	public int maxMegabytes() {
+		return maxMegabytes;
+	}
+	
+	public boolean isUnlimited(){
+		return maxBuilds==0 && maxMegabytes==0;
+	}
+
+	@Override
+	public String toString() {
+		return isUnlimited() ? "unlimited" : format("{} builds, {} MB", 
+				maxBuilds==0 ? "any number of" : maxBuilds, maxMegabytes==0 ? "any" : maxMegabytes);
+	}
+
+}
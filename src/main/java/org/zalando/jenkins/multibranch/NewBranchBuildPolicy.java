@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch;
+
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+
+/**
+ * Defines if and how fast builds are triggered for newly detected branches.
+ */
+public final class NewBranchBuildPolicy {
+	
+	public static final int DEFAULT_MAX_BUILDS_PER_MINUTE = 5;
+	
+	public static final NewBranchBuildPolicy DEFAULT = 
+			new NewBranchBuildPolicy(Mode.IMMEDIATE, DEFAULT_MAX_BUILDS_PER_MINUTE);
+	
+	public static enum Mode{
+		OFF("Do not build new branches"),
+		IMMEDIATE("Build all new branches immediately"),
+		STAGGERED("Build new branches staggered (limited number per minute)");
+		
+		private final String displayName;
+
+		private Mode(final String displayName) {
+			this.displayName = displayName;
+		}
+
+		public String getDisplayName() {
+			return displayName;
+		}
+	}
+	
+	private final Mode mode;
+	private final int maxBuildsPerMinute;
+	
+	public NewBranchBuildPolicy(final Mode mode, final int maxBuildsPerMinute) {
+		if(mode==null) throw new IllegalArgumentException("No mode.");
+		if(maxBuildsPerMinute<1) throw new IllegalArgumentException(
+				format("The maximum number of builds per minute must be positive (is {}).", maxBuildsPerMinute));
+		this.mode = mode;
+		this.maxBuildsPerMinute = maxBuildsPerMinute;
+	}
+
+	public Mode mode() {
+		return mode;
+	}
+
+	/**
+	 * Only relevant for {@link Mode#STAGGERED}.
+	 */
+	public int maxBuildsPerMinute() {
+		return maxBuildsPerMinute;
+	}
+
+	@Override
+	public String toString() {
+		return mode==Mode.STAGGERED ? format("{} ({}/min)", mode, maxBuildsPerMinute) : mode.toString();
+	}
+
+}
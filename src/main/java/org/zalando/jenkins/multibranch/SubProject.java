@@ -47,6 +47,29 @@ public interface SubProject<P> extends Comparable<SubProject<?>>{
 	Date lastScmChange();
 	
 	void setBroken();
+	
+	/**
+	 * @return true if the delegate has been fully initialized (including its builds) by onLoad().
+	 */
+	boolean isLoaded();
+	
+	void setLoaded();
+
+	/**
+	 * @return true if the project has been removed from its repository. Holders of stale 
+	 * references must not modify it any more.
+	 */
+	boolean isRemoved();
+	
+	void setRemoved();
+
+	/**
+	 * @return true if the project has been restored from the archive of removed branches 
+	 * instead of being created from scratch. It keeps its build history, so it is no new branch.
+	 */
+	boolean isRestored();
+	
+	void setRestored();
 
 	void setLastScmChange(Date lastChange);
 }
@@ -28,6 +28,8 @@ import java.util.List;
 
 import javax.annotation.Nullable;
 
+import org.zalando.jenkins.multibranch.util.Consumer;
+
 import com.google.common.collect.ImmutableSortedSet;
 
 public interface SubProjectRepository<P> extends SubProjectFactory<P>, BranchAgeListener{
@@ -45,8 +47,21 @@ SubProject<P> getOptionalProject(final BranchId branch);
 
 void delete(final BranchId project) throws IOException, InterruptedException, ProjectDoesNotExixtException;
 
+/**
+ * Performs the action on the sub-project of the branch while holding the lock of the branch, so 
+ * that the sub-project is neither deleted nor replaced while the action runs.
+ * 
+ * @throws ProjectDoesNotExixtException if there is no sub-project for the branch (any more).
+ */
+void withProject(final BranchId branch, final Consumer<SubProject<P>> action) throws Exception;
+
 public void ensureInitialized();
 
+/**
+ * @return a short description of the usage and contention of the repository lock.
+ */
+String getLockStatistics();
+
 public static final class ProjectDoesNotExixtException extends Exception{
 	private static final long serialVersionUID = -3355036226913409225L;
 	public ProjectDoesNotExixtException(final String message) {
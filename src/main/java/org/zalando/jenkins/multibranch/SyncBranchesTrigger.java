@@ -45,6 +45,10 @@ import java.util.logging.Logger;
 
 import org.apache.commons.jelly.XMLOutput;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+import org.zalando.jenkins.multibranch.BranchesSynchronizer.SyncPriority;
 
 import antlr.ANTLRException;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
@@ -91,6 +95,18 @@ public class SyncBranchesTrigger<P extends AbstractMultiBranchProject<?,?>> exte
 	 */
 	@Override
 	public void run() {
+		sync(SyncPriority.NORMAL);
+	}
+
+	/**
+	 * Same as {@link #run()}, but the synchronization is prioritised over the periodic 
+	 * ones of other projects. Used for user requests and SCM events.
+	 */
+	public void runNow() {
+		sync(SyncPriority.HIGH);
+	}
+
+	private void sync(final SyncPriority priority) {
 		/*
 		 * The #start(Item, boolean) method provides the job so this will be null
 		 * only when invoked directly before starting.
@@ -109,7 +125,7 @@ public class SyncBranchesTrigger<P extends AbstractMultiBranchProject<?,?>> exte
 //					"Started on " + DateFormat.getDateTimeInstance().format(
 //							new Date()));
 
-			job.syncBranches(getLogFile().toPath());
+			job.syncBranches(getLogFile().toPath(), priority);
 
 //			listener.getLogger().println("Done. Took " + Util.getTimeSpanString(
 //					System.currentTimeMillis() - start));
@@ -174,6 +190,22 @@ public class SyncBranchesTrigger<P extends AbstractMultiBranchProject<?,?>> exte
 			return "syncBranchesLog";
 		}
 
+		/**
+		 * Used by index.jelly to show the cancel button.
+		 */
+		public boolean isSyncInProgress() {
+			return job().isSyncInProgress();
+		}
+
+		/**
+		 * Stops the running sync at the next branch boundary.
+		 */
+		@RequirePOST
+		public void doCancel(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+			job().cancelSync();
+			rsp.sendRedirect(".");
+		}
+
 		/**
 		 * Used by index.jelly to display the log.
 		 *
@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.impl;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zalando.jenkins.multibranch.util.Duration;
+
+/**
+ * Decides whether a periodic synchronization is due, based on the observed churn: Each run 
+ * without changes doubles the interval (starting at {@link #MIN_INTERVAL}, up to 
+ * {@link #MAX_INTERVAL}); a run with changes resets it. The intervals are randomized by 
+ * &plusmn;{@link #JITTER}, so that projects do not align.
+ */
+final class AdaptiveSyncInterval {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(AdaptiveSyncInterval.class);
+	
+	private static final Duration MIN_INTERVAL = Duration.of(
+			Long.getLong(AdaptiveSyncInterval.class.getName()+".minIntervalMinutes", 5L).longValue(), TimeUnit.MINUTES);
+	private static final Duration MAX_INTERVAL = Duration.of(
+			Long.getLong(AdaptiveSyncInterval.class.getName()+".maxIntervalMinutes", 120L).longValue(), TimeUnit.MINUTES);
+	private static final double JITTER = 0.2d;
+	private static final int MAX_DOUBLINGS = 16;
+	
+	private final Random random = new Random();
+	
+	//Guarded by this:
+	private int unchangedRuns;
+	private long nextRun;
+	private Duration interval = Duration.ofMllis(0L);
+	
+	/**
+	 * @return true if the next periodic synchronization should be done now.
+	 */
+	synchronized boolean isDue(){
+		return System.currentTimeMillis() >= nextRun;
+	}
+	
+	/**
+	 * Records the outcome of a synchronization and computes when the next periodic one is due.
+	 */
+	synchronized void recordRun(final boolean changed){
+		if(changed) unchangedRuns = 0;
+		else if(unchangedRuns<MAX_DOUBLINGS) unchangedRuns++;
+		//Runs without change start the backoff at MIN_INTERVAL; the first run after a change is not delayed:
+		final long millis;
+		if(unchangedRuns==0) millis = 0L;
+		else{
+			final long base = Math.min(MAX_INTERVAL.toMillis(), MIN_INTERVAL.toMillis() << (unchangedRuns-1));
+			final double jitter = 1d + JITTER * (2d * random.nextDouble() - 1d);
+			millis = (long) (base * jitter);
+		}
+		interval = Duration.ofMllis(millis);
+		nextRun = System.currentTimeMillis() + millis;
+		LOG.debug("{} unchanged runs. Next periodic sync in {}.", unchangedRuns, interval);
+	}
+	
+	/**
+	 * @return the interval until the next periodic synchronization.
+	 */
+	synchronized Duration interval(){
+		return interval;
+	}
+
+}
@@ -42,6 +42,7 @@ final class BranchNameMapperImpl implements BranchNameMapper {
 	private static Logger LOG = LoggerFactory.getLogger(BranchNameMapperImpl.class);
 	
 	private static final String PREFIX = "f-";
+	private static final String BRANCH_PREFIX = "feature/";
 
 	private final WeakHashMap<BranchId,BranchId> canonicalIds = new WeakHashMap<>();
 	
@@ -59,7 +60,7 @@ final class BranchNameMapperImpl implements BranchNameMapper {
 	public BranchId fromProjectName(final String projectName) {
 		if(!projectNameSupported(projectName))
 			throw new IllegalArgumentException(format("The project name \"{}\" is not supported.", projectName));		
-		return forHead(new SCMHead("feature/"+(projectName.substring("f-".length()))));
+		return forHead(new SCMHead(BRANCH_PREFIX+(projectName.substring(PREFIX.length()))));
 	}
 
 	/**
@@ -114,7 +115,7 @@ final class BranchNameMapperImpl implements BranchNameMapper {
 		else {
 			final String branchName = branch.getName();
 			if(branchName==null) return false;
-			else if(!branchName.startsWith("feature/")) return false;
+			else if(!branchName.startsWith(BRANCH_PREFIX)) return false;
 			else return projectNameSupported(getProjectNameInternal(branch));
 		}
 	}
@@ -130,13 +131,18 @@ final class BranchNameMapperImpl implements BranchNameMapper {
 	}
 	
 
+	@Override
+	public String branchNamePattern() {
+		return BRANCH_PREFIX+"*";
+	}
+
 	private SCMHead getBranch(final String projectName) {
 		if(!projectNameSupported(projectName)) throw new IllegalArgumentException();
-		return new SCMHead("feature/"+(projectName.substring("f-".length())));
+		return new SCMHead(BRANCH_PREFIX+(projectName.substring(PREFIX.length())));
 	}
 
 	private String getProjectNameInternal(final SCMHead branch) {
-		return "f-"+(branch.getName().substring("feature/".length()));
+		return PREFIX+(branch.getName().substring(BRANCH_PREFIX.length()));
 	}
 
 	private boolean hasSpecialCharacters(final String projectName) {
@@ -24,7 +24,6 @@
 package org.zalando.jenkins.multibranch.impl;
 
 import static com.google.common.collect.ImmutableSortedSet.copyOf;
-import static com.google.common.collect.Lists.transform;
 import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
 import hudson.model.Item;
 import hudson.model.ItemGroup;
@@ -32,20 +31,28 @@ import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.security.ACL;
 import hudson.triggers.SCMTrigger;
-import hudson.util.StreamTaskListener;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
 
 import jenkins.model.Jenkins;
-import jenkins.scm.api.SCMHead;
+import jenkins.scm.api.SCMRevision;
 import jenkins.scm.api.SCMSource;
 
 import org.acegisecurity.Authentication;
@@ -54,20 +61,28 @@ import org.acegisecurity.context.SecurityContextHolder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zalando.jenkins.multibranch.BranchId;
-import org.zalando.jenkins.multibranch.BranchNameMapper;
 import org.zalando.jenkins.multibranch.BranchesSynchronizer;
+import org.zalando.jenkins.multibranch.NewBranchBuildPolicy;
 import org.zalando.jenkins.multibranch.SubProject;
 import org.zalando.jenkins.multibranch.SubProjectFactory.ProjectAlreadyExixtsException;
 import org.zalando.jenkins.multibranch.SubProjectRepository;
 import org.zalando.jenkins.multibranch.SubProjectRepository.ProjectDoesNotExixtException;
+import org.zalando.jenkins.multibranch.impl.MultiSourceFetcher.FetchResult;
+import org.zalando.jenkins.multibranch.impl.SyncJournal.Operation;
+import org.zalando.jenkins.multibranch.impl.SyncJournal.Recovery;
 import org.zalando.jenkins.multibranch.util.Consumer;
 import org.zalando.jenkins.multibranch.util.Duration;
 
 import com.google.common.base.Function;
-import com.google.common.collect.ImmutableList;
+import com.google.common.base.Predicate;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 /**
  * Factores out the synchromnization logic from AbstractMultiBranchProject.
@@ -76,66 +91,128 @@ public final class BranchesSynchronizerImpl<P extends AbstractProject<P,R>,R ext
 implements BranchesSynchronizer<P>{
 	
 private static Logger LOG = LoggerFactory.getLogger(BranchesSynchronizerImpl.class);
+
+/**
+ * Even if nothing changed, a full run is done at this interval, e.g. to restore manually 
+ * modified sub-project configurations.
+ */
+private static final Duration FULL_SYNC_INTERVAL = Duration.of(
+		Long.getLong(BranchesSynchronizerImpl.class.getName()+".fullSyncIntervalMinutes", 60L).longValue(), TimeUnit.MINUTES);
+
+/**
+ * A run stops at the next branch boundary after this time. The remaining branches are 
+ * processed first in the next run.
+ */
+private static final Duration TIME_BUDGET = Duration.of(
+		Long.getLong(BranchesSynchronizerImpl.class.getName()+".timeBudgetMinutes", 15L).longValue(), TimeUnit.MINUTES);
+
+/**
+ * If set, the sync log lists the branches of each phase and every successfully processed branch. 
+ * Otherwise only counts (and the skipped and failed branches) are logged, which keeps the log 
+ * small with many branches.
+ */
+private static final boolean LOG_BRANCHES = Boolean.getBoolean(BranchesSynchronizerImpl.class.getName()+".logBranches");
 	
 private final ItemGroup<? extends Item> parentProject;
 private final SubProjectRepository<P> subProjectRegistry;
-private final BranchNameMapper branchNameMapper;
+private final MultiSourceFetcher fetcher;
 private final Function<ImmutableSortedSet<BranchId>, ImmutableSet<BranchId>> branchFilter;
 private final Runnable jenkinsUpdate;
-private final ExecutorService executor;
-private final AtomicBoolean syncInProgress = new AtomicBoolean();
+private final NewBranchBuildScheduler<P,R> buildScheduler;
+private final TemplateConfigCache templateConfig;
+private final Supplier<Boolean> centralChangeDetection;
+private final Supplier<Boolean> adaptiveSyncIntervalEnabled;
+private final ChangeDetector changeDetector;
+private final SyncScheduler syncScheduler;
+private final AdaptiveSyncInterval syncInterval;
+//State of the last successful run, used to skip runs without changes:
+private volatile Fingerprint lastFingerprint;
+private volatile long lastFullSync;
+private volatile Fingerprint previousFingerprint;
+//Branches not processed by the last run because it stopped early:
+private volatile ImmutableSortedSet<BranchId> pendingBranches = ImmutableSortedSet.of();
+private volatile SyncBudget currentBudget;
+private final SyncJournal journal;
+private final Comparator<BranchId> newestFirst;
+private final Predicate<BranchId> recentlyChanged;
+private final int maxBranches;
+private final ExecutorService pipelineExecutor;
+//State of the run interrupted by the last shutdown, read when the project is loaded and used by the first run only:
+private volatile Recovery recovery;
 
 
 BranchesSynchronizerImpl(
 		final ItemGroup<? extends Item> parentProject,
 		final SubProjectRepository<P> subProjectRegistry,
-		final BranchNameMapper branchNameMapper,
+		final MultiSourceFetcher fetcher,
 		final Function<ImmutableSortedSet<BranchId>, ImmutableSet<BranchId>> branchFilter,
 		final Runnable jenkinsUpdate,
-		final ExecutorService executor) {
+		final NewBranchBuildScheduler<P,R> buildScheduler,
+		final TemplateConfigCache templateConfig,
+		final Supplier<Boolean> centralChangeDetection,
+		final Supplier<Boolean> adaptiveSyncIntervalEnabled,
+		final ChangeDetector changeDetector,
+		final SyncScheduler syncScheduler,
+		final AdaptiveSyncInterval syncInterval,
+		final SyncJournal journal,
+		final Comparator<BranchId> newestFirst,
+		final Predicate<BranchId> recentlyChanged,
+		final int maxBranches,
+		final ExecutorService pipelineExecutor) {
 	super();
 	this.parentProject = parentProject;
 	this.subProjectRegistry = subProjectRegistry;
-	this.branchNameMapper = branchNameMapper;
+	this.fetcher = fetcher;
 	this.branchFilter = branchFilter;
 	this.jenkinsUpdate = jenkinsUpdate;
-	this.executor = executor;
+	this.buildScheduler = buildScheduler;
+	this.templateConfig = templateConfig;
+	this.centralChangeDetection = centralChangeDetection;
+	this.adaptiveSyncIntervalEnabled = adaptiveSyncIntervalEnabled;
+	this.changeDetector = changeDetector;
+	this.syncScheduler = syncScheduler;
+	this.syncInterval = syncInterval;
+	this.journal = journal;
+	this.newestFirst = newestFirst;
+	this.recentlyChanged = recentlyChanged;
+	this.maxBranches = maxBranches;
+	this.pipelineExecutor = pipelineExecutor;
 }
 
 
 	@Override
-	public Future<Void> synchronizeBranches(final SCMSource scmSource,
-			final P templateProject, final Path logFile) {
+	public Future<Void> synchronizeBranches(final List<SCMSource> scmSources,
+			final P templateProject, final Path logFile, final SyncPriority priority) {
 		LOG.debug("Adding synchronizeBranches task.");
-		return executor.submit(new Callable<Void>() {
+		return syncScheduler.submit(this, parentProject.getFullName(), priority, new Callable<Void>() {
 			@Override
 			public Void call() throws Exception {
+				final SyncBudget budget = new SyncBudget(TIME_BUDGET);
+				currentBudget = budget;
 				try {
-					if (syncInProgress.compareAndSet(false, true)) {
-						try (final SyncListener listener = createSyncListener(logFile)) {
-							final Date start = logStart(listener);
+					try (final SyncListener listener = createSyncListener(logFile)) {
+						final Date start = logStart(listener);
+						listener.info("Sync scheduler: {}.", syncScheduler.getStatistics());
+						try {
+							final SecurityContext oldContext = ACL
+									.impersonate(ACL.SYSTEM);
 							try {
-								final SecurityContext oldContext = ACL
-										.impersonate(ACL.SYSTEM);
-								try {
-									doSynchronizeBranches(scmSource,
-											templateProject, listener);
-								} catch (final Throwable t) {
-									listener.error("Error during branch synchronization.",t);
-								} finally {
-									SecurityContextHolder
-											.setContext(oldContext);
-								}
+								doSynchronizeBranches(scmSources,
+										templateProject, budget, listener);
+							} catch (final Throwable t) {
+								listener.error("Error during branch synchronization.",t);
 							} finally {
-								syncInProgress.set(false);
-								logFinished(listener, start);
+								SecurityContextHolder
+										.setContext(oldContext);
 							}
+						} finally {
+							logFinished(listener, start);
 						}
-					} else {
-						LOG.warn("Skipped synchronization run (still active).");
 					}
 				} catch (final Throwable t) {
 					LOG.error("Branch synchronization failed.", t);
+				} finally {
+					currentBudget = null;
 				}
 				return null;
 			}
@@ -144,6 +221,33 @@ BranchesSynchronizerImpl(
 		});
 	}
 	
+	@Override
+	public boolean isInProgress() {
+		return currentBudget!=null;
+	}
+
+	@Override
+	public synchronized boolean recover() {
+		if(recovery==null){
+			recovery = journal.recover();
+			if(!recovery.unfinished().isEmpty()){
+				pendingBranches = copyOf(Sets.union(pendingBranches, recovery.unfinished()));
+			}
+			return !recovery.unfinished().isEmpty();
+		}
+		else return false;
+	}
+
+	@Override
+	public boolean cancel() {
+		final SyncBudget budget = currentBudget;
+		if(budget==null) return false;
+		else{
+			budget.cancel();
+			return true;
+		}
+	}
+	
 private SyncListener createSyncListener(final Path logFile) {
 	return new SyncListenerImpl(logFile);
 }
@@ -168,105 +272,344 @@ private void logFinished(final SyncListener listener, final Date start) {
  * by the parent project.
  */
 private void doSynchronizeBranches(
-		final SCMSource scmSource, 
+		final List<SCMSource> scmSources, 
 		final P templateProject, 
+		final SyncBudget budget,
 		final SyncListener listener)
 	throws IOException, InterruptedException {
 	final Authentication user = Jenkins.getAuthentication();
 	listener.info("Synchronizing branches as user {}.",user==null?null:user.getName()+".");
 	
+	final boolean detectChanges = centralChangeDetection.get().booleanValue();
+	
+	//Normally done when the project is loaded; read before the journal is replaced by this run:
+	recover();
+	final String templateStamp = templateConfig.fileStamp();
+	journal.begin(templateStamp);
+	
+	// New, recently changed branches are created while fetching, everything else waits for the complete head set:
+	final SubProject<P> template = subProjectRegistry.getTemplateProject();
+	final EarlyBranchPipeline pipeline = new EarlyBranchPipeline(subProjectRegistry.getBranches(), recentlyChanged, 
+			branchFilter, newestFirst, maxBranches, new EarlyBranchPipeline.Action(){
+				@Override
+				public void process(final BranchId branch, final SCMSource source) throws Exception {
+					journal.plan(Operation.CREATE, branch, "");
+					journal.plan(Operation.SYNC, branch, source.getId());
+					subProjectRegistry.createNewSubProject(branch);
+					journal.done(Operation.CREATE, branch);
+					subProjectRegistry.withProject(branch, new Consumer<SubProject<P>>(){
+						@Override
+						public void accept(final SubProject<P> subProject) throws Exception {
+							getProjectSynchronizer(template, subProject, source, detectChanges, listener).call();
+						}});
+					journal.done(Operation.SYNC, branch);
+					jenkinsUpdate.run();
+				}}, pipelineExecutor, budget, listener);
+	
 	// Get all SCM branches when this method starts (snapshot):
-	listener.info("---\nReading branches from {}.", scmSource.getDescriptor());
-	final ImmutableSortedSet<BranchId> allBranches = fetchBranches(scmSource, listener);
+	listener.info("---\nReading branches from {} sources.", scmSources.size());
+	final FetchResult fetchResult;
+	final ImmutableMap<BranchId,String> createdEarly;
+	try{
+		fetchResult = fetcher.fetch(scmSources, pipeline, listener);
+	} finally{
+		createdEarly = pipeline.finish();
+	}
+	final ImmutableSortedSet<BranchId> allBranches = selectBranches(fetchResult, listener);
 	listener.info("Finished. SCM currently contains {} relevant branches.\n---", allBranches.size());
 
-	// Get all current branches (snapshot):	
-	final ImmutableSortedSet<BranchId> existingBranches = subProjectRegistry.getBranches();
+	// Get all current sub-projects (snapshot, one lock window):	
+	Date phaseStart = new Date();
+	final Map<BranchId,SubProject<P>> projects = new HashMap<>();
+	for(final SubProject<P> project: subProjectRegistry.getProjects()) projects.put(project.branch(), project);
+	final ImmutableSortedSet<BranchId> existingBranches = copyOf(projects.keySet());
+	
+	final Fingerprint fingerprint = fingerprint(fetchResult, allBranches, existingBranches, detectChanges);
+	final boolean changed = !fingerprint.equals(previousFingerprint);
+	previousFingerprint = fingerprint;
+	if(adaptiveSyncIntervalEnabled.get().booleanValue()){
+		syncInterval.recordRun(changed);
+		listener.info("Next periodic sync in {}.", syncInterval.interval());
+	}
+	if(isUnchanged(fingerprint)){
+		listener.info(format("No change since the last run (fingerprint {}, took {}). Skipping synchronization.", 
+				fingerprint, Duration.since(phaseStart)));
+		journal.end(true);
+		return;
+	}
+	lastFingerprint = null;
+	final ImmutableSortedSet<BranchId> previouslyPending = pendingBranches;
+	if(!previouslyPending.isEmpty()) listener.info(format(
+			"The previous run stopped early. Processing its {} pending branches first.", previouslyPending.size()));
+	final Set<BranchId> pending = new HashSet<>();
+	int failures = 0;
+	
 	logList(listener, "---\nCurrently there are sub-projects for the following {} branches:", existingBranches);
 	
-	final ImmutableSortedSet<BranchId> newBranches = copyOf(Sets.difference(allBranches, existingBranches));
-	forEach(newBranches, new Consumer<BranchId>(){
+	// Plan (without side effects):
+	final ImmutableSortedMap.Builder<BranchId,String> sourceIds = ImmutableSortedMap.naturalOrder();
+	for(final BranchId branch: allBranches) sourceIds.put(branch, fetchResult.source(branch).getId());
+	final SyncPlan plan = SyncPlan.compute(sourceIds.build(), existingBranches, fetchResult.isComplete(), recovery, templateStamp);
+	recovery = Recovery.NONE;
+	listener.info(format("Plan: {} (took {}).", plan, Duration.since(phaseStart)));
+	if(plan.deletionsSuppressed()) listener.error("Not all sources could be fetched. No sub-projects will be deleted in this run.");
+	
+	// Apply:
+	final Set<BranchId> syncs = new HashSet<>(plan.syncs().keySet());
+	final Map<BranchId,String> plannedSyncs = new HashMap<>(plan.syncs());
+	for(final Map.Entry<BranchId,String> e: createdEarly.entrySet()){
+		//Already synchronized with the winning source while fetching (and journaled then):
+		if(e.getValue().equals(plan.syncs().get(e.getKey()))){
+			syncs.remove(e.getKey());
+			plannedSyncs.remove(e.getKey());
+		}
+	}
+	journal.plan(plan.creations(), plan.deletions(), plannedSyncs);
+
+	failures += forEach(pendingFirst(plan.creations(), previouslyPending), new Consumer<BranchId>(){
 		@Override
 		public void accept(final BranchId branch) throws ProjectAlreadyExixtsException, IOException {
-			subProjectRegistry.createNewSubProject(branch);			
-		}}, listener, "---\nCreating {} new sub-projects:");
+			projects.put(branch, subProjectRegistry.createNewSubProject(branch));			
+			journal.done(Operation.CREATE, branch);
+		}}, listener, "---\nCreating {} new sub-projects:", budget, pending);
 
-	final ImmutableSortedSet<BranchId> branchesToDelete = copyOf(Sets.difference(existingBranches, allBranches));
-	forEach(branchesToDelete, new Consumer<BranchId>(){
+	failures += forEach(plan.deletions(), new Consumer<BranchId>(){
 		@Override
 		public void accept(final BranchId branch) throws IOException, InterruptedException, ProjectDoesNotExixtException {
 			subProjectRegistry.delete(branch);			
-		}}, listener, "---\nDeleting {} old sub-projects:");
+			projects.remove(branch);
+			journal.done(Operation.DELETE, branch);
+		}}, listener, "---\nDeleting {} old sub-projects:", budget, pending);
 	
-	forEach(allBranches, new Consumer<BranchId>(){
+	failures += forEach(pendingFirst(syncs, previouslyPending), new Consumer<BranchId>(){
 		@Override
 		public void accept(final BranchId branch) throws Exception {
-			getProjectSynchronizer(branch, scmSource, listener).call();			
-		}}, listener, "---\nSynchronizing {} sub-projects:");
+			//Locked, so that the sub-project is not deleted or replaced while it is written:
+			subProjectRegistry.withProject(branch, new Consumer<SubProject<P>>(){
+				@Override
+				public void accept(final SubProject<P> subProject) throws Exception {
+					getProjectSynchronizer(template, subProject, fetchResult.source(branch), detectChanges, listener).call();
+				}});
+			journal.done(Operation.SYNC, branch);
+		}}, listener, "---\nSynchronizing {} sub-projects:", budget, pending);
+	
+	pendingBranches = ImmutableSortedSet.copyOf(pending);
+	journal.end(pending.isEmpty());
+	if(!pending.isEmpty()) listener.error(format("Stopped early ({}). {} branches are pending for the next run.", 
+			budget.reason(), pending.size()));
 	
-	listener.info("Updating Jenkins");
+	phaseStart = new Date();
 	jenkinsUpdate.run();
+	listener.info(format("Updated Jenkins (took {}).", Duration.since(phaseStart)));
 
-	// Trigger build for new branches
-	// TODO make this optional
-	forEach(newBranches, new Consumer<BranchId>(){
-		@Override
-		public void accept(final BranchId branch) throws Exception {
-			final SubProject<P> project = subProjectRegistry.getProject(branch);
-			if(project==null) throw new IllegalStateException(format("No project found for {}.", branch));
-			final SCMTrigger.SCMTriggerCause cause = new SCMTrigger.SCMTriggerCause("New branch detected.");
-			project.delegate().scheduleBuild(cause);
-		}}, listener, "---\nTriggering build for {} sub-projects:");
+	final ImmutableSortedSet.Builder<BranchId> created = ImmutableSortedSet.naturalOrder();
+	for(final BranchId branch: Sets.union(plan.creations(), createdEarly.keySet())){
+		//Branches created while fetching are only built once the plan has selected them:
+		if(!allBranches.contains(branch)) continue;
+		final SubProject<P> project = projects.get(branch);
+		//Restored branches keep their build history, they are no new branches:
+		if(project!=null && !project.isRestored()) created.add(branch);
+	}
+	triggerNewBranchBuilds(created.build(), listener);
+	if(detectChanges) triggerChangedBranchBuilds(fetchResult, listener);
+	else changeDetector.reset();
+	listener.info("Repository lock: {}.", subProjectRegistry.getLockStatistics());
+	
+	if(failures==0 && pending.isEmpty() && fetchResult.isComplete()){
+		lastFingerprint = fingerprint;
+		lastFullSync = System.currentTimeMillis();
+	}
+}
+
+
+private boolean isUnchanged(final Fingerprint fingerprint) {
+	return fingerprint.equals(lastFingerprint) && 
+			System.currentTimeMillis() - lastFullSync < FULL_SYNC_INTERVAL.toMillis();
 }
 
 
+/**
+ * Everything a run depends on: a hash over the selected heads with their source, the existing 
+ * sub-projects and the template configuration, plus the head revisions of the selected branches. 
+ * The revisions are compared by {@link SCMRevision#equals(Object)}, like the change detection does.
+ */
+private Fingerprint fingerprint(final FetchResult fetchResult, final ImmutableSortedSet<BranchId> selectedBranches, 
+		final ImmutableSortedSet<BranchId> existingBranches, final boolean detectChanges) throws IOException {
+	final Hasher hasher = Hashing.sha1().newHasher();
+	final ImmutableMap.Builder<BranchId,SCMRevision> revisions = ImmutableMap.builder();
+	hasher.putString(templateConfig.stamp()).putBoolean(detectChanges).putBoolean(fetchResult.isComplete());
+	for(final BranchId branch: selectedBranches){
+		hasher.putString(branch.toProjectName()).putChar('\t')
+			.putString(fetchResult.source(branch).getId()).putChar('\n');
+		final SCMRevision revision = fetchResult.revisions().get(branch);
+		if(revision!=null) revisions.put(branch, revision);
+	}
+	hasher.putChar('\n');
+	for(final BranchId branch: existingBranches){
+		hasher.putString(branch.toProjectName()).putChar('\n');
+	}
+	return new Fingerprint(hasher.hash().toString(), revisions.build());
+}
+
+
+private static final class Fingerprint{
+	private final String hash;
+	private final ImmutableMap<BranchId,SCMRevision> revisions;
+	
+	private Fingerprint(final String hash, final ImmutableMap<BranchId,SCMRevision> revisions) {
+		this.hash = hash;
+		this.revisions = revisions;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if(!(obj instanceof Fingerprint)) return false;
+		final Fingerprint other = (Fingerprint) obj;
+		return hash.equals(other.hash) && revisions.equals(other.revisions);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return format("{} with {} revisions", hash, revisions.size());
+	}
+}
+
+/**
+ * Replaces the SCM polling of the sub-projects: Triggers builds for the branches whose head 
+ * revision changed since the last build was scheduled. A revision is only recorded once its 
+ * build was scheduled, so branches whose build could not be scheduled are retried.
+ */
+private void triggerChangedBranchBuilds(final FetchResult fetchResult, final SyncListener listener) 
+		throws InterruptedException {
+	final Date start = new Date();
+	final ImmutableSortedMap<BranchId,SCMRevision> revisions = fetchResult.revisions();
+	final ImmutableSortedSet<BranchId> changedBranches = 
+			changeDetector.detectChanges(revisions, subProjectRegistry.getBranches());
+	listener.info(format("---\nDetected {} changed branches ({} of {} branches report a revision, took {}).", 
+			changedBranches.size(), revisions.size(), fetchResult.branches().size(), Duration.since(start)));
+	final Map<BranchId,SCMRevision> scheduled = new HashMap<>();
+	try{
+		forEach(changedBranches, new Consumer<BranchId>(){
+			@Override
+			public void accept(final BranchId branch) throws Exception {
+				final SCMRevision revision = revisions.get(branch);
+				final SCMTrigger.SCMTriggerCause cause = new SCMTrigger.SCMTriggerCause(
+						format("Branch sync detected new revision {}.", revision));
+				if(!subProjectRegistry.getProject(branch).delegate().scheduleBuild(cause)){
+					throw new IOException(format("The build of revision {} was not scheduled.", revision));
+				}
+				scheduled.put(branch, revision);
+			}}, listener, "Triggering build for {} changed sub-projects:");
+	}finally{
+		changeDetector.recordScheduled(scheduled);
+	}
+}
+
+
+/**
+ * Logs the number of items, and the items themselves only if {@link #LOG_BRANCHES} is set.
+ */
 private void logList(final SyncListener log,
 		final String msg, final Collection<?> items) {
-	final StringBuilder sb = new StringBuilder(format(msg, items.size()));
+	final String header = format(msg, items.size());
+	if(!LOG_BRANCHES){
+		log.info(header.endsWith(":") ? header.substring(0, header.length()-1)+"." : header);
+		return;
+	}
+	final StringBuilder sb = new StringBuilder(header);
 	for(final Object item: items) sb.append(format("\n * {}", item));
-	
+	log.info(sb.toString());
 }
 
 
-private ImmutableSortedSet<BranchId> fetchBranches(final SCMSource scmSource, final SyncListener listener) throws InterruptedException, IOException {
-	Set<SCMHead> branches;
-	try(StreamTaskListener taskListener = listener.asTaskListener()){
-		branches = scmSource.fetch(taskListener);
-	}
-	final ImmutableSortedSet<BranchId> all = copyOf(transform(ImmutableList.copyOf(branches), 
-			Functions.fromSCMHead(branchNameMapper)));
+private ImmutableSortedSet<BranchId> selectBranches(final FetchResult fetchResult, final SyncListener listener) {
+	final Date start = new Date();
+	final ImmutableSortedSet<BranchId> all = fetchResult.branches();
 	final ImmutableSortedSet<BranchId> selected = copyOf(branchFilter.apply(all));
+	listener.info(format("Selected {} of {} branches (took {}).", selected.size(), all.size(), Duration.since(start)));
 	return selected;
 }
 
 
-protected Callable<Void> getProjectSynchronizer(final BranchId branch, final SCMSource scmSource, final SyncListener listener) 
-		throws IOException, ProjectDoesNotExixtException {
-	final SubProject<P> templateProject = subProjectRegistry.getTemplateProject();
-	final SubProject<P> subProject = subProjectRegistry.getProject(branch);
-	return new ProjectSynchronizer<P,R>(parentProject, templateProject, subProject, scmSource, listener);
+protected Callable<Void> getProjectSynchronizer(final SubProject<P> templateProject, final SubProject<P> subProject, 
+		final SCMSource scmSource, final boolean disablePolling, final SyncListener listener) {
+	return new ProjectSynchronizer<P,R>(parentProject, templateProject, subProject, templateConfig, scmSource, disablePolling, listener);
 	}
 
 
-private <T> void forEach(final Collection<? extends T> elements, final Consumer<T> action, 
+/**
+ * @return the branches in the given set, those pending from the previous run first and 
+ * within both groups the most recently changed first.
+ */
+private List<BranchId> pendingFirst(final Set<BranchId> branches, final ImmutableSortedSet<BranchId> pending) {
+	final List<BranchId> first = new ArrayList<>(Sets.intersection(branches, pending));
+	final List<BranchId> rest = new ArrayList<>(Sets.difference(branches, pending));
+	Collections.sort(first, newestFirst);
+	Collections.sort(rest, newestFirst);
+	first.addAll(rest);
+	return first;
+}
+
+
+/**
+ * @return the number of failed elements.
+ */
+private <T> int forEach(final Collection<? extends T> elements, final Consumer<T> action, 
 		final SyncListener listener, final String message)
 		throws InterruptedException {
+	return forEach(elements, action, listener, message, null, null);
+}
+
+
+/**
+ * Like {@link #forEach(Collection, Consumer, SyncListener, String)}, but stops when the budget 
+ * is exhausted and adds the remaining elements to {@code pending}.
+ * @return the number of failed elements.
+ */
+private <T> int forEach(final Collection<? extends T> elements, final Consumer<T> action, 
+		final SyncListener listener, final String message, 
+		@Nullable final SyncBudget budget, @Nullable final Collection<? super T> pending)
+		throws InterruptedException {
 	logList(listener, message, elements);
+	final Date start = new Date();
+	int done = 0;
+	int skipped = 0;
+	int failed = 0;
 	for (final T element : elements) {
+		if(budget!=null && budget.isExhausted()){
+			pending.add(element);
+			continue;
+		}
 		try{
 			action.accept(element);
-			listener.info("{}: DONE.",element);
+			if(LOG_BRANCHES) listener.info("{}: DONE.",element);
+			done++;
 		} catch (final InterruptedException e) {
 			listener.error("Interrupted while doing {}.",element);
 			throw e;
 		} catch (final ProjectDoesNotExixtException e) {
 			listener.info("{}: SKIPPED (Project does not exist any more).",element);
+			skipped++;
 		} catch (final ProjectAlreadyExixtsException e) {
 			listener.info("{}: SKIPPED (Project does exist now).",element);
+			skipped++;
 		} catch (final Exception e) {
 			listener.error(e, "{}: FAILED. Exception: ",element);
+			failed++;
 		}
 	}
+	final int processed = done+skipped+failed;
+	if(processed>0){
+		final Duration duration = Duration.since(start);
+		listener.info(format("{} done, {} skipped, {} failed, {} pending. Took {} ({} ms per item).", 
+				done, skipped, failed, elements.size()-processed, duration, duration.toMillis()/processed));
+	}
+	return failed;
 }
 
 
@@ -0,0 +1,320 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.impl;
+
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.listeners.RunListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import jenkins.model.StandardArtifactManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zalando.jenkins.multibranch.BuildHistoryBudget;
+import org.zalando.jenkins.multibranch.SubProject;
+import org.zalando.jenkins.multibranch.SubProjectRepository;
+import org.zalando.jenkins.multibranch.util.Duration;
+import org.zalando.jenkins.multibranch.util.TrashBin;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Periodically enforces the {@link BuildHistoryBudget} over the builds of all sub-projects. The 
+ * newest build of each sub-project is always kept. Of the others, the builds of inactive 
+ * sub-projects (no build for {@link #ACTIVE_PERIOD}) are deleted first, and within both groups 
+ * the oldest first. Builds marked as "keep forever" are never deleted.
+ * <p>
+ * The builds are found by listing the build directories and ordered by the timestamp in their 
+ * build record ({@link hudson.model.Run#getTimeInMillis()}), which is read without loading the 
+ * record. Only the builds to delete are loaded. Like {@link hudson.model.Run#delete()}, deleting 
+ * a build notifies the listeners and removes it from its project, but its directory is moved to 
+ * the {@link TrashBin} and purged in the background.
+ */
+final class BuildHistoryRetention<P extends AbstractProject<P,R>,R extends AbstractBuild<P,R>> implements Runnable {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(BuildHistoryRetention.class);
+	
+	private static final Duration ACTIVE_PERIOD = Duration.of(
+			Long.getLong(BuildHistoryRetention.class.getName()+".activeDays", 7L).longValue(), TimeUnit.DAYS);
+	
+	private static final Duration CHECK_INTERVAL = Duration.of(
+			Long.getLong(BuildHistoryRetention.class.getName()+".checkIntervalMinutes", 30L).longValue(), TimeUnit.MINUTES);
+	
+	private static final long MEGABYTE = 1024L * 1024L;
+	
+	private static final String BUILD_RECORD = "build.xml";
+	
+	private static final XMLInputFactory XML = XMLInputFactory.newInstance();
+	static{
+		XML.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+	}
+
+	//Weak, so that the task ends if the project is dropped without being deleted (e.g. on reload); 
+	//a deleted project stops it explicitly:
+	private final WeakReference<SubProjectRepository<P>> repository;
+	private final Supplier<BuildHistoryBudget> budgetSupplier;
+	private final String name;
+	private final TrashBin trashBin;
+	//Sizes of finished builds, which do not change any more:
+	private Map<Path,Long> sizes = new HashMap<>();
+	//Timestamps of the builds, which never change:
+	private Map<Path,Long> timestamps = new HashMap<>();
+	private ScheduledFuture<?> task;
+
+	BuildHistoryRetention(final SubProjectRepository<P> repository, final Supplier<BuildHistoryBudget> budgetSupplier, 
+			final String name, final TrashBin trashBin) {
+		this.repository = new WeakReference<>(repository);
+		this.budgetSupplier = budgetSupplier;
+		this.name = name;
+		this.trashBin = trashBin;
+	}
+	
+	synchronized void start(final ScheduledExecutorService executor){
+		if(task==null) task = executor.scheduleWithFixedDelay(this, 
+				CHECK_INTERVAL.toMillis(), CHECK_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	synchronized void stop(){
+		if(task!=null) task.cancel(false);
+	}
+
+	@Override
+	public synchronized void run() {
+		final SubProjectRepository<P> projects = repository.get();
+		if(projects==null){
+			task.cancel(false);
+			return;
+		}
+		try{
+			final BuildHistoryBudget budget = budgetSupplier.get();
+			if(budget!=null && !budget.isUnlimited()) enforce(projects, budget);
+		} catch(final Throwable t){
+			LOG.error(format("Enforcing the build history budget of {} failed.", name), t);
+		}
+	}
+
+	private void enforce(final SubProjectRepository<P> projects, final BuildHistoryBudget budget) 
+			throws IOException, InterruptedException {
+		final Date start = new Date();
+		final boolean measure = budget.maxMegabytes()>0;
+		final long activeSince = System.currentTimeMillis() - ACTIVE_PERIOD.toMillis();
+		final Map<Path,Long> newSizes = new HashMap<>();
+		final Map<Path,Long> newTimestamps = new HashMap<>();
+		final List<Build> candidates = new ArrayList<>();
+		long count = 0;
+		long bytes = 0;
+		for(final SubProject<P> project: projects.getProjects()){
+			if(project.isRemoved()) continue;
+			final List<Build> builds = listBuilds(project, newTimestamps);
+			if(builds.isEmpty()) continue;
+			//Newest first; the newest one is always kept:
+			Collections.sort(builds);
+			final boolean active = builds.get(0).timestamp>=activeSince;
+			for(int i=0; i<builds.size(); i++){
+				final Build build = builds.get(i);
+				if(measure){
+					Long size = sizes.get(build.directory);
+					if(size==null) size = Long.valueOf(size(build.directory));
+					//The newest build may still be running, so its size is not cached:
+					if(i>0) newSizes.put(build.directory, size);
+					build.bytes = size.longValue();
+				}
+				count++;
+				bytes += build.bytes;
+				if(i>0){
+					build.active = active;
+					candidates.add(build);
+				}
+			}
+		}
+		sizes = newSizes;
+		timestamps = newTimestamps;
+		Collections.sort(candidates, EVICTION_ORDER);
+		
+		int deleted = 0;
+		final long maxBytes = budget.maxMegabytes()*MEGABYTE;
+		for(final Build build: candidates){
+			final boolean overCount = budget.maxBuilds()>0 && count>budget.maxBuilds();
+			final boolean overBytes = maxBytes>0 && bytes>maxBytes;
+			if(!overCount && !overBytes) break;
+			try{
+				if(delete(build)){
+					deleted++;
+					count--;
+					bytes -= build.bytes;
+					sizes.remove(build.directory);
+				}
+			} catch(final IOException e){
+				LOG.warn(format("Could not delete build {} of {}.", build.number, build.project), e);
+			}
+		}
+		final String remaining = measure ? format("{} builds ({} MB)", count, bytes/MEGABYTE) : format("{} builds", count);
+		if(deleted>0) LOG.info("Deleted {} builds of {} to meet the build history budget of {}. {} remain (took {}).", 
+				deleted, name, budget, remaining, Duration.since(start));
+		else LOG.debug("The build history of {} ({}) is within the budget of {}.", name, remaining, budget);
+	}
+
+	private boolean delete(final Build build) throws IOException, InterruptedException {
+		@SuppressWarnings("unchecked")
+		final P delegate = (P) build.project.delegate();
+		final R run = delegate.getBuildByNumber(build.number);
+		if(run==null) return !Files.exists(build.directory);
+		if(run.isBuilding() || run.isKeepLog()) return false;
+		RunListener.fireDeleted(run);
+		//Artifacts of the standard manager are part of the build directory:
+		if(!(run.getArtifactManager() instanceof StandardArtifactManager)) run.getArtifactManager().delete();
+		trashBin.moveToTrash(run.getRootDir().toPath());
+		delegate._getRuns().removeValue(run);
+		LOG.debug("Deleted build {} of {}.", build.number, build.project);
+		return true;
+	}
+
+	private List<Build> listBuilds(final SubProject<P> project, final Map<Path,Long> newTimestamps) throws IOException {
+		final List<Build> builds = new ArrayList<>();
+		final Path buildDir = project.delegate().getBuildDir().toPath();
+		if(Files.isDirectory(buildDir)){
+			try(DirectoryStream<Path> entries = Files.newDirectoryStream(buildDir)){
+				for(final Path entry: entries){
+					//Builds are stored in directories named by their number, the rest are symbolic links:
+					final String fileName = entry.getFileName().toString();
+					if(fileName.matches("\\d{1,9}") && Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)){
+						Long timestamp = timestamps.get(entry);
+						if(timestamp==null) timestamp = timestamp(entry);
+						if(timestamp!=null) newTimestamps.put(entry, timestamp);
+						//A running build may not have written its record yet:
+						else timestamp = Long.valueOf(Files.getLastModifiedTime(entry).toMillis());
+						builds.add(new Build(project, Integer.parseInt(fileName), entry, timestamp.longValue()));
+					}
+				}
+			}
+		}
+		return builds;
+	}
+
+	/**
+	 * @return the timestamp of the build as stored in its build record, or null if it cannot be read.
+	 */
+	private static @Nullable Long timestamp(final Path directory) {
+		final Path record = directory.resolve(BUILD_RECORD);
+		if(!Files.isRegularFile(record)) return null;
+		try(final InputStream in = Files.newInputStream(record)){
+			final XMLStreamReader reader = XML.createXMLStreamReader(in);
+			try{
+				int depth = 0;
+				while(reader.hasNext()){
+					final int event = reader.next();
+					if(event==XMLStreamConstants.START_ELEMENT){
+						depth++;
+						if(depth==2 && "timestamp".equals(reader.getLocalName())){
+							return Long.valueOf(reader.getElementText().trim());
+						}
+					}
+					else if(event==XMLStreamConstants.END_ELEMENT) depth--;
+				}
+			} finally{
+				reader.close();
+			}
+		} catch (final IOException | XMLStreamException | NumberFormatException e) {
+			LOG.debug(format("Could not read the timestamp from {}.", record), e);
+		}
+		return null;
+	}
+
+	private static long size(final Path directory) throws IOException {
+		final long[] size = new long[1];
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>(){
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+				size[0] += attrs.size();
+				return FileVisitResult.CONTINUE;
+			}
+			@Override
+			public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return size[0];
+	}
+	
+	/**
+	 * Inactive sub-projects first, then the oldest builds first.
+	 */
+	private static final Comparator<Build> EVICTION_ORDER = new Comparator<Build>(){
+		@Override
+		public int compare(final Build b1, final Build b2) {
+			if(b1.active!=b2.active) return b1.active ? 1 : -1;
+			return Long.compare(b1.timestamp, b2.timestamp);
+		}};
+	
+	private static final class Build implements Comparable<Build>{
+		private final SubProject<? extends AbstractProject<?,?>> project;
+		private final int number;
+		private final Path directory;
+		private final long timestamp;
+		private long bytes;
+		private boolean active;
+		private Build(final SubProject<? extends AbstractProject<?,?>> project, final int number, final Path directory, final long timestamp) {
+			this.project = project;
+			this.number = number;
+			this.directory = directory;
+			this.timestamp = timestamp;
+		}
+		/**
+		 * Highest build number first.
+		 */
+		@Override
+		public int compareTo(final Build o) {
+			return Integer.compare(o.number, number);
+		}
+	}
+
+}
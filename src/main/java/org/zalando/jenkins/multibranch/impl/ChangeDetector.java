@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.impl;
+
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+
+import hudson.XmlFile;
+import hudson.model.Items;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import jenkins.scm.api.SCMRevision;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zalando.jenkins.multibranch.BranchId;
+import org.zalando.jenkins.multibranch.BranchNameMapper;
+
+import com.google.common.collect.ImmutableSortedSet;
+
+/**
+ * Detects changed branches centrally by comparing the head revisions fetched during the 
+ * synchronization with the last revision a build was scheduled for. This replaces the SCM 
+ * polling of the individual sub-projects. The revisions are compared by 
+ * {@link SCMRevision#equals(Object)} and persisted with XStream, so changes made while 
+ * Jenkins was down are detected as well.
+ */
+final class ChangeDetector {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(ChangeDetector.class);
+	
+	static final String REVISIONS_FILE_NAME = "head-revisions.xml";
+
+	private final XmlFile revisionsFile;
+	private final Map<BranchId,SCMRevision> revisions = new HashMap<>();
+	
+	ChangeDetector(final BranchNameMapper branchNameMapper, final Path rootDirectory) {
+		revisionsFile = new XmlFile(Items.XSTREAM, rootDirectory.resolve(REVISIONS_FILE_NAME).toFile());
+		load(branchNameMapper);
+	}
+
+	/**
+	 * Returns the branches whose head revision differs from the revision recorded for them. The 
+	 * recorded revision of a changed branch is kept until {@link #recordScheduled(Map)} is 
+	 * called for it, so a build that could not be scheduled is retried during the next 
+	 * synchronization. Branches without a recorded revision (e.g. new branches) are not 
+	 * considered changed, their current revision is recorded as the baseline. Revisions of 
+	 * branches not contained in {@code existingBranches} are forgotten.
+	 * 
+	 * @param currentRevisions the head revisions fetched from the SCM.
+	 * @param existingBranches the branches which currently have a sub-project.
+	 */
+	synchronized ImmutableSortedSet<BranchId> detectChanges(
+			final Map<BranchId,SCMRevision> currentRevisions, final Set<BranchId> existingBranches){
+		final ImmutableSortedSet.Builder<BranchId> changed = ImmutableSortedSet.naturalOrder();
+		final Map<BranchId,SCMRevision> updated = new HashMap<>();
+		for(final BranchId branch: existingBranches){
+			final SCMRevision previous = revisions.get(branch);
+			final SCMRevision current = currentRevisions.get(branch);
+			if(previous!=null){
+				//Not fetched (e.g. the source failed) or not built yet: keep what we know.
+				updated.put(branch, previous);
+				if(current!=null && !previous.equals(current)) changed.add(branch);
+			}else if(current!=null){
+				updated.put(branch, current);
+			}
+		}
+		if(!updated.equals(revisions)){
+			revisions.clear();
+			revisions.putAll(updated);
+			persist();
+		}
+		return changed.build();
+	}
+
+	/**
+	 * Records the revisions for which a build was scheduled successfully.
+	 */
+	synchronized void recordScheduled(final Map<BranchId,SCMRevision> scheduled){
+		if(!scheduled.isEmpty()){
+			revisions.putAll(scheduled);
+			persist();
+		}
+	}
+
+	/**
+	 * Forgets all recorded revisions, e.g. when central change detection is switched off.
+	 */
+	synchronized void reset(){
+		if(!revisions.isEmpty()){
+			revisions.clear();
+			persist();
+		}
+	}
+
+	private void load(final BranchNameMapper branchNameMapper) {
+		if(revisionsFile.exists()){
+			try {
+				@SuppressWarnings("unchecked")
+				final Map<String,SCMRevision> stored = (Map<String,SCMRevision>) revisionsFile.read();
+				for(final Map.Entry<String,SCMRevision> e: stored.entrySet()){
+					if(e.getValue()!=null && branchNameMapper.projectNameSupported(e.getKey())){
+						revisions.put(branchNameMapper.fromProjectName(e.getKey()), e.getValue());
+					}
+				}
+				LOG.debug("Loaded {} head revisions from {}.", revisions.size(), revisionsFile);
+			} catch (final IOException | RuntimeException e) {
+				LOG.warn(format("Could not read head revisions from {}.", revisionsFile), e);
+			}
+		}
+	}
+
+	private void persist() {
+		assert Thread.holdsLock(this);
+		try {
+			if(revisions.isEmpty()) Files.deleteIfExists(revisionsFile.getFile().toPath());
+			else{
+				final Map<String,SCMRevision> stored = new TreeMap<>();
+				for(final Map.Entry<BranchId,SCMRevision> e: revisions.entrySet()){
+					stored.put(e.getKey().toProjectName(), e.getValue());
+				}
+				revisionsFile.write(stored);
+			}
+		} catch (final IOException e) {
+			LOG.warn(format("Could not save head revisions to {}.", revisionsFile), e);
+		}
+	}
+
+}
@@ -0,0 +1,194 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.impl;
+
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+import hudson.security.ACL;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import jenkins.scm.api.SCMSource;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.zalando.jenkins.multibranch.BranchId;
+import org.zalando.jenkins.multibranch.impl.MultiSourceFetcher.HeadListener;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Sets;
+
+/**
+ * Processes new, recently changed branches while the fetch is still running, so that a freshly 
+ * pushed branch does not have to wait for the slowest source. Heads are queued as the sources 
+ * report them and processed by a single worker, the most recently changed first. At most 
+ * {@code maxBranches} sub-projects exist afterwards, like with the regular branch filter. Before 
+ * a branch is created, the branch filter is applied to the existing branches and all heads 
+ * reported so far; a branch it rejects would be rejected for the complete head set as well, so 
+ * it is left to the plan. The filter cannot confirm a branch before the fetch is complete, so the 
+ * new-branch builds are only triggered once the plan has selected the branch.
+ * <p>
+ * Everything else is left to the regular plan, which needs the complete head set: Creating the 
+ * remaining branches, synchronizing the existing ones and in particular deleting. 
+ */
+final class EarlyBranchPipeline implements HeadListener {
+	
+	interface Action{
+		void process(BranchId branch, SCMSource source) throws Exception;
+	}
+
+	private final ImmutableSet<BranchId> existing;
+	private final Predicate<BranchId> eligible;
+	private final Function<ImmutableSortedSet<BranchId>, ImmutableSet<BranchId>> branchFilter;
+	private final Action action;
+	private final ExecutorService executor;
+	private final SyncBudget budget;
+	private final SyncListener listener;
+	
+	private final PriorityQueue<BranchId> queue;
+	private final Map<BranchId,SCMSource> sources = new ConcurrentHashMap<>();
+	private final Set<BranchId> reported = Collections.newSetFromMap(new ConcurrentHashMap<BranchId,Boolean>());
+	private final Set<BranchId> seen = new HashSet<>();
+	private final Map<BranchId,String> processed = new HashMap<>();
+	private int slots;
+	private boolean running;
+	private boolean closed;
+
+	/**
+	 * @param existing the branches having a sub-project when the fetch started.
+	 * @param eligible selects the branches to process early, e.g. the recently changed ones.
+	 * @param branchFilter the filter selecting the branches from the complete head set.
+	 */
+	EarlyBranchPipeline(final ImmutableSet<BranchId> existing, final Predicate<BranchId> eligible, 
+			final Function<ImmutableSortedSet<BranchId>, ImmutableSet<BranchId>> branchFilter,
+			final Comparator<BranchId> priority, final int maxBranches, final Action action, 
+			final ExecutorService executor, final SyncBudget budget, final SyncListener listener) {
+		this.existing = existing;
+		this.eligible = eligible;
+		this.branchFilter = branchFilter;
+		this.action = action;
+		this.executor = executor;
+		this.budget = budget;
+		this.listener = listener;
+		queue = new PriorityQueue<>(11, priority);
+		slots = maxBranches - existing.size();
+	}
+
+	@Override
+	public void onHead(final BranchId branch, final SCMSource source) {
+		try{
+			reported.add(branch);
+			if(existing.contains(branch) || !eligible.apply(branch)) return;
+			synchronized(this){
+				if(closed || slots<=0 || !seen.add(branch)) return;
+				slots--;
+				sources.put(branch, source);
+				queue.add(branch);
+				if(!running){
+					executor.submit(worker());
+					running = true;
+				}
+			}
+		} catch(final RuntimeException e){
+			listener.error(e, "Could not queue {} for early creation.", branch);
+		}
+	}
+
+	/**
+	 * Stops accepting heads, drops the branches not started yet (the regular plan creates them) 
+	 * and waits for the branch in progress.
+	 * @return the processed branches with the id of the source they were processed with.
+	 */
+	synchronized ImmutableMap<BranchId,String> finish() throws InterruptedException{
+		closed = true;
+		final int dropped = queue.size();
+		queue.clear();
+		while(running) wait();
+		if(!seen.isEmpty()) listener.info(format(
+				"Created {} new branches while fetching, {} were still queued: {}", 
+				processed.size(), dropped, processed.keySet()));
+		return ImmutableMap.copyOf(processed);
+	}
+
+	private Runnable worker() {
+		return new Runnable(){
+			@Override
+			public void run() {
+				final SecurityContext oldContext = ACL.impersonate(ACL.SYSTEM);
+				try{
+					BranchId branch;
+					while((branch = next())!=null){
+						final SCMSource source = sources.get(branch);
+						try{
+							if(!isSelected(branch)){
+								listener.info("{}: NOT SELECTED WHILE FETCHING, left to the plan.", branch);
+								continue;
+							}
+							action.process(branch, source);
+							listener.info("{}: CREATED EARLY.", branch);
+							synchronized(EarlyBranchPipeline.this){
+								processed.put(branch, source.getId());
+							}
+						} catch(final InterruptedException e){
+							listener.error("Interrupted while creating {}.", branch);
+							Thread.currentThread().interrupt();
+							return;
+						} catch(final Exception e){
+							listener.error(e, "{}: EARLY CREATION FAILED. Exception: ", branch);
+						}
+					}
+				} finally{
+					synchronized(EarlyBranchPipeline.this){
+						running = false;
+						EarlyBranchPipeline.this.notifyAll();
+					}
+					SecurityContextHolder.setContext(oldContext);
+				}
+			}};
+	}
+
+	/**
+	 * @return false if the branch filter rejects the branch already among the heads known so far.
+	 */
+	private boolean isSelected(final BranchId branch) {
+		return branchFilter.apply(ImmutableSortedSet.copyOf(Sets.union(existing, reported))).contains(branch);
+	}
+
+	private synchronized BranchId next() {
+		if(budget.isExhausted()) queue.clear();
+		return queue.poll();
+	}
+
+}
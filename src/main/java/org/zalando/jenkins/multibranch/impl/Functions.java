@@ -23,6 +23,9 @@
  */
 package org.zalando.jenkins.multibranch.impl;
 
+import java.util.Comparator;
+import java.util.Date;
+
 import jenkins.scm.api.SCMHead;
 
 import org.zalando.jenkins.multibranch.BranchId;
@@ -60,6 +63,26 @@ public final class Functions {
 			}
 		};
 	}
+
+	/**
+	 * @return a comparator ordering branches by their last change, the most recent first. Branches 
+	 * without a known last change come last.
+	 */
+	public static Comparator<BranchId> newestFirst(final Function<BranchId,Date> lastChangeSupplier) {
+		return new Comparator<BranchId>(){
+			@Override
+			public int compare(final BranchId b1, final BranchId b2) {
+				final Date d1 = lastChangeSupplier.apply(b1);
+				final Date d2 = lastChangeSupplier.apply(b2);
+				if(d1==null) return d2==null ? b1.compareTo(b2) : 1;
+				else if(d2==null) return -1;
+				else{
+					final int c = d2.compareTo(d1);
+					return c!=0 ? c : b1.compareTo(b2);
+				}
+			}
+		};
+	}
 	
 	
 }
@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.impl;
+
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Queue;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zalando.jenkins.multibranch.SubProject;
+import org.zalando.jenkins.multibranch.SubProjectRepository;
+import org.zalando.jenkins.multibranch.SubProjectRepository.ProjectDoesNotExixtException;
+import org.zalando.jenkins.multibranch.util.Consumer;
+import org.zalando.jenkins.multibranch.util.Duration;
+
+/**
+ * Periodically drops the loaded build records of idle sub-projects. A sub-project is idle if it 
+ * is neither building nor queued and no build has been started for {@link #IDLE_PERIOD}. If the 
+ * heap usage exceeds {@link #HEAP_THRESHOLD_PERCENT}, the shorter {@link #PRESSURE_IDLE_PERIOD} 
+ * is used instead. The build records are reloaded lazily by Jenkins when they are accessed again. 
+ * The check and the purge happen atomically under the lock of the branch and the queue lock, so a 
+ * build record is never dropped while a build holds on to it.
+ * <p>
+ * The delegate project itself stays in memory, because Jenkins (queue, dependency graph, UI) 
+ * holds references to it.
+ */
+final class IdleProjectUnloader<P extends AbstractProject<P,R>,R extends AbstractBuild<P,R>> implements Runnable {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(IdleProjectUnloader.class);
+	
+	private static final Duration IDLE_PERIOD = Duration.of(
+			Long.getLong(IdleProjectUnloader.class.getName()+".idleDays", 7L).longValue(), TimeUnit.DAYS);
+	
+	private static final Duration PRESSURE_IDLE_PERIOD = Duration.of(
+			Long.getLong(IdleProjectUnloader.class.getName()+".pressureIdleMinutes", 60L).longValue(), TimeUnit.MINUTES);
+	
+	private static final long HEAP_THRESHOLD_PERCENT = 
+			Long.getLong(IdleProjectUnloader.class.getName()+".heapThresholdPercent", 75L).longValue();
+	
+	private static final Duration CHECK_INTERVAL = Duration.of(
+			Long.getLong(IdleProjectUnloader.class.getName()+".checkIntervalMinutes", 15L).longValue(), TimeUnit.MINUTES);
+
+	//Weak, so that the task ends if the project is dropped without being deleted (e.g. on reload); 
+	//a deleted project stops it explicitly:
+	private final WeakReference<SubProjectRepository<P>> repository;
+	private final String name;
+	//The last activity seen when unloading, to unload only once per idle period:
+	private final Map<SubProject<P>,Long> unloaded = new WeakHashMap<>();
+	private ScheduledFuture<?> task;
+
+	IdleProjectUnloader(final SubProjectRepository<P> repository, final String name) {
+		this.repository = new WeakReference<>(repository);
+		this.name = name;
+	}
+	
+	synchronized void start(final ScheduledExecutorService executor){
+		if(task==null) task = executor.scheduleWithFixedDelay(this, 
+				CHECK_INTERVAL.toMillis(), CHECK_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	synchronized void stop(){
+		if(task!=null) task.cancel(false);
+	}
+
+	@Override
+	public synchronized void run() {
+		final SubProjectRepository<P> projects = repository.get();
+		if(projects==null){
+			task.cancel(false);
+			return;
+		}
+		try{
+			final Runtime runtime = Runtime.getRuntime();
+			final long heapPercent = (runtime.totalMemory()-runtime.freeMemory())*100/runtime.maxMemory();
+			final Duration idlePeriod = heapPercent>HEAP_THRESHOLD_PERCENT ? PRESSURE_IDLE_PERIOD : IDLE_PERIOD;
+			final long now = System.currentTimeMillis();
+			int count = 0;
+			for(final SubProject<P> project: projects.getProjects()){
+				try{
+					if(unload(projects, project, now, idlePeriod)) count++;
+				} catch(final ProjectDoesNotExixtException e){
+					LOG.debug("{} was removed while unloading.", project);
+				} catch(final Exception e){
+					LOG.warn(format("Could not unload the build records of {}.", project), e);
+				}
+			}
+			if(count>0) LOG.info("Unloaded the build records of {} sub-projects of {}, idle for more than {} (heap {}% used).", 
+					count, name, idlePeriod, heapPercent);
+		} catch(final Throwable t){
+			LOG.error(format("Unloading idle sub-projects of {} failed.", name), t);
+		}
+	}
+
+	private boolean unload(final SubProjectRepository<P> projects, final SubProject<P> project, final long now, 
+			final Duration idlePeriod) throws Exception {
+		if(project.isRemoved()) return false;
+		final P delegate = project.delegate();
+		if(delegate.isBuilding() || delegate.isInQueue()) return false;
+		final long lastActivity = lastActivity(project, delegate);
+		if(now-lastActivity < idlePeriod.toMillis()) return false;
+		final Long before = unloaded.get(project);
+		if(before!=null && before.longValue()==lastActivity) return false;
+		final AtomicBoolean purged = new AtomicBoolean();
+		//The branch lock keeps the sub-project from being deleted or replaced, the queue lock keeps
+		//builds from being scheduled or started between the check and the purge:
+		projects.withProject(project.branch(), new Consumer<SubProject<P>>(){
+			@Override
+			public void accept(final SubProject<P> locked) throws Exception {
+				if(locked!=project) return;
+				Queue.withLock(new Runnable(){
+					@Override
+					public void run() {
+						if(delegate.isBuilding() || delegate.isInQueue()) return;
+						if(lastActivity(project, delegate)!=lastActivity) return;
+						delegate._getRuns().purgeCache();
+						purged.set(true);
+					}});
+			}});
+		if(!purged.get()) return false;
+		unloaded.put(project, lastActivity);
+		LOG.debug("Unloaded the build records of {}.", project);
+		return true;
+	}
+
+	/**
+	 * Every new build adds a directory to the builds directory. Using its timestamp avoids loading 
+	 * a build record just to find out when the last build happened.
+	 */
+	private static long lastActivity(final SubProject<?> project, final AbstractProject<?,?> delegate) {
+		final File buildDir = delegate.getBuildDir();
+		return buildDir.exists() ? buildDir.lastModified() : project.rootDirectory().toFile().lastModified();
+	}
+
+}
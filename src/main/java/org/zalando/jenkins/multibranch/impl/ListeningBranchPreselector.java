@@ -23,25 +23,53 @@
  */
 package org.zalando.jenkins.multibranch.impl;
 
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
 import hudson.model.TaskListener;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jenkins.scm.api.SCMHead;
 import jenkins.scm.api.SCMSourceCriteria;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.zalando.jenkins.multibranch.BranchAgeListener;
 import org.zalando.jenkins.multibranch.BranchId;
 import org.zalando.jenkins.multibranch.BranchNameMapper;
 
+/**
+ * Selects the heads during the fetch, i.e. before they are turned into {@link BranchId}s. 
+ * The branch name is checked first, because it is available without any further work of the 
+ * SCM source; the last change is only requested for supported names. Rejected heads are only 
+ * counted, so that repositories with thousands of tags and pull request refs do not flood the 
+ * sync log.
+ * <p>
+ * The selection is not pushed down to the SCM source: scm-api has no generic way to restrict 
+ * the heads a source lists, so the source still lists every head and calls these criteria for 
+ * each. If most heads are rejected by name, only a hint is logged, telling the user to restrict 
+ * the branches in the configuration of the source.
+ */
 @SuppressWarnings("serial")
 final class ListeningBranchPreselector implements SCMSourceCriteria{
+	
+	private static final Logger LOG = LoggerFactory.getLogger(ListeningBranchPreselector.class);
 
 	private final BranchNameMapper branchNameMapper;
 	private final Long maxAge;
 	BranchAgeListener branchAgeListener;
 	
+	private final AtomicInteger accepted = new AtomicInteger();
+	private final AtomicInteger unsupported = new AtomicInteger();
+	private final AtomicInteger tooOld = new AtomicInteger();
+	
+	//The accepted heads of the fetch running in the current thread, see startRecording():
+	private final transient ThreadLocal<Map<String,Long>> recording = new ThreadLocal<>();
+	
 	
 	ListeningBranchPreselector(
 			final BranchNameMapper branchNameMapper,
@@ -71,7 +99,8 @@ final class ListeningBranchPreselector implements SCMSourceCriteria{
 			}else{
 				final SCMHead scmHead = new SCMHead(name);
 				if(!branchNameMapper.branchNameSupported(scmHead)){
-					listener.error("The branch name "+scmHead+" is not supported.");
+					LOG.debug("The branch name {} is not supported.", scmHead);
+					unsupported.incrementAndGet();
 					accepted = false;
 				}else{
 					final BranchId branch = branchNameMapper.fromSCMHead(scmHead);
@@ -80,14 +109,74 @@ final class ListeningBranchPreselector implements SCMSourceCriteria{
 					else{
 						final long age = System.currentTimeMillis()-lastChange.getTime();
 						accepted = age <= maxAge.longValue();
-						if(!accepted) listener.getLogger().println(
-								"Branch "+scmHead+" is too old (last change at "+lastChange+").");
+						if(!accepted){
+							LOG.debug("Branch {} is too old (last change at {}).", scmHead, lastChange);
+							tooOld.incrementAndGet();
+						}
+					}
+					if(accepted){
+						branchAgeListener.registerLastChange(branch, lastChange);
+						this.accepted.incrementAndGet();
+						final Map<String,Long> lastChanges = recording.get();
+						if(lastChanges!=null) lastChanges.put(name, Long.valueOf(lastChange.getTime()));
 					}
-					if(accepted) branchAgeListener.registerLastChange(branch, lastChange);
 				}
 			}
 		}
 		return accepted;
 	}
+	
+	/**
+	 * @return a key that is equal for criteria that accept the same heads.
+	 */
+	String criteriaKey(){
+		return format("{}:{}", branchNameMapper.branchNamePattern(), maxAge);
+	}
+	
+	/**
+	 * Starts recording the heads accepted in the current thread, so that they can be 
+	 * {@link #replay(Map) replayed} by other projects sharing the fetch result.
+	 */
+	void startRecording(){
+		recording.set(new HashMap<String,Long>());
+	}
+
+	/**
+	 * @return the time of the last change by head name of the heads accepted since 
+	 * {@link #startRecording()}.
+	 */
+	Map<String,Long> stopRecording(){
+		final Map<String,Long> result = recording.get();
+		recording.remove();
+		return result==null ? Collections.<String,Long>emptyMap() : result;
+	}
+	
+	/**
+	 * Registers heads accepted by equivalent criteria during a fetch of another project.
+	 */
+	void replay(final Map<String,Long> lastChanges){
+		for(final Map.Entry<String,Long> e: lastChanges.entrySet()){
+			final SCMHead scmHead = new SCMHead(e.getKey());
+			branchAgeListener.registerLastChange(branchNameMapper.fromSCMHead(scmHead), new Date(e.getValue().longValue()));
+			accepted.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Logs and resets the counts of accepted and rejected heads since the last call. If most heads 
+	 * had unsupported names, a hint how to exclude them in the SCM source is logged.
+	 */
+	void logAndResetCounts(final SyncListener listener){
+		final int acceptedCount = accepted.getAndSet(0);
+		final int unsupportedCount = unsupported.getAndSet(0);
+		final int tooOldCount = tooOld.getAndSet(0);
+		listener.info(format("Heads: {} accepted, {} with unsupported name, {} too old.", 
+				acceptedCount, unsupportedCount, tooOldCount));
+		if(unsupportedCount>acceptedCount+tooOldCount){
+			listener.info(format("Most heads have an unsupported name. Restrict the branches of the "
+					+ "SCM source to \"{}\", so that the source does not list and probe them.", 
+					branchNameMapper.branchNamePattern()));
+		}
+	}
 
 }
@@ -0,0 +1,237 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.impl;
+
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+import hudson.security.ACL;
+import hudson.util.StreamTaskListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jenkins.scm.api.SCMHead;
+import jenkins.scm.api.SCMHeadObserver;
+import jenkins.scm.api.SCMRevision;
+import jenkins.scm.api.SCMSource;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.zalando.jenkins.multibranch.BranchId;
+import org.zalando.jenkins.multibranch.BranchNameMapper;
+import org.zalando.jenkins.multibranch.impl.SharedFetchCache.Heads;
+import org.zalando.jenkins.multibranch.util.Duration;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+
+/**
+ * Fetches the branches of several SCM sources concurrently, each one with a timeout, and 
+ * merges them. If several sources contain the same branch, the first source (in the 
+ * configured order) wins. The head revisions reported by the sources are recorded as well.
+ * Each head is also passed on to a {@link HeadListener} as soon as its source reports it.
+ * Fetch results are shared with other projects using an equivalent source, see {@link SharedFetchCache}.
+ */
+final class MultiSourceFetcher {
+	
+	private static final Duration FETCH_TIMEOUT = Duration.of(
+			Long.getLong(MultiSourceFetcher.class.getName()+".timeoutMinutes", 10L).longValue(), TimeUnit.MINUTES);
+	
+	private final BranchNameMapper branchNameMapper;
+	private final ListeningBranchPreselector preselector;
+	private final ExecutorService executor;
+
+	MultiSourceFetcher(final BranchNameMapper branchNameMapper, final ListeningBranchPreselector preselector, 
+			final ExecutorService executor) {
+		this.branchNameMapper = branchNameMapper;
+		this.preselector = preselector;
+		this.executor = executor;
+	}
+	
+	FetchResult fetch(final List<SCMSource> scmSources, final HeadListener headListener, final SyncListener listener) 
+			throws InterruptedException{
+		if(scmSources.isEmpty()) throw new IllegalStateException("No SCM source configured.");
+		final Date start = new Date();
+		final List<Future<Map<SCMHead,SCMRevision>>> futures = new ArrayList<>(scmSources.size());
+		for(final SCMSource source: scmSources){
+			futures.add(executor.submit(fetchTask(source, headListener, listener)));
+		}
+		final Map<BranchId,SCMSource> sources = new HashMap<>();
+		final Map<BranchId,SCMRevision> revisions = new HashMap<>();
+		boolean complete = true;
+		try{
+			for(int i=0; i<scmSources.size(); i++){
+				final SCMSource source = scmSources.get(i);
+				final Future<Map<SCMHead,SCMRevision>> future = futures.get(i);
+				final long remaining = Math.max(0L, start.getTime() + FETCH_TIMEOUT.toMillis() - System.currentTimeMillis());
+				try {
+					final Map<SCMHead,SCMRevision> heads = future.get(remaining, TimeUnit.MILLISECONDS);
+					int shadowed = 0;
+					for(final Map.Entry<SCMHead,SCMRevision> head: heads.entrySet()){
+						//Sources that ignore the criteria may report unsupported heads:
+						if(!branchNameMapper.branchNameSupported(head.getKey())) continue;
+						final BranchId branch = branchNameMapper.fromSCMHead(head.getKey());
+						if(sources.containsKey(branch)) shadowed++;
+						else {
+							sources.put(branch, source);
+							if(head.getValue()!=null) revisions.put(branch, head.getValue());
+						}
+					}
+					listener.info(format("Fetched {} branches from {} ({} shadowed by preceding sources, took {}).", 
+							heads.size(), describe(source), shadowed, Duration.since(start)));
+				} catch (final TimeoutException e) {
+					future.cancel(true);
+					complete = false;
+					listener.error(format("Fetching branches from {} timed out after {}.", describe(source), FETCH_TIMEOUT));
+				} catch (final ExecutionException e) {
+					complete = false;
+					listener.error(e.getCause(), format("Fetching branches from {} failed.", describe(source)));
+				}
+			}
+		} finally{
+			for(final Future<?> future: futures) future.cancel(true);
+			preselector.logAndResetCounts(listener);
+		}
+		return new FetchResult(ImmutableSortedMap.copyOf(sources), ImmutableSortedMap.copyOf(revisions), complete);
+	}
+
+	private static String describe(final SCMSource source) {
+		return format("{} ({})", source.getDescriptor().getDisplayName(), source.getId());
+	}
+
+	private Callable<Map<SCMHead,SCMRevision>> fetchTask(final SCMSource source, final HeadListener headListener, 
+			final SyncListener listener) {
+		return new Callable<Map<SCMHead,SCMRevision>>(){
+			@Override
+			public Map<SCMHead,SCMRevision> call() throws Exception {
+				final SecurityContext oldContext = ACL.impersonate(ACL.SYSTEM);
+				try{
+					final AtomicBoolean loaded = new AtomicBoolean();
+					final Heads heads = SharedFetchCache.get().fetch(
+							SharedFetchCache.key(source, preselector.criteriaKey()), 
+							new Callable<Heads>(){
+								@Override
+								public Heads call() throws Exception {
+									loaded.set(true);
+									return doFetch(source, headListener, listener);
+								}});
+					if(!loaded.get()){
+						preselector.replay(heads.lastChanges());
+						for(final SCMHead head: heads.revisions().keySet()) notify(headListener, head, source);
+						listener.info(format("Reusing the {} heads of {} fetched {} ago for an equivalent source.", 
+								heads.revisions().size(), describe(source), heads.age()));
+					}
+					return heads.revisions();
+				} catch(final ExecutionException e){
+					throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				} finally {
+					SecurityContextHolder.setContext(oldContext);
+				}
+			}};
+	}
+
+	private Heads doFetch(final SCMSource source, final HeadListener headListener, final SyncListener listener) 
+			throws IOException, InterruptedException {
+		try(StreamTaskListener taskListener = listener.asTaskListener()){
+			final Map<SCMHead,SCMRevision> revisions = new HashMap<>();
+			preselector.startRecording();
+			final Map<String,Long> lastChanges;
+			try{
+				source.fetch(new SCMHeadObserver(){
+					@Override
+					public void observe(final SCMHead head, final SCMRevision revision) {
+						revisions.put(head, revision);
+						notify(headListener, head, source);
+					}}, taskListener);
+			} finally{
+				lastChanges = preselector.stopRecording();
+			}
+			return new Heads(revisions, lastChanges);
+		}
+	}
+
+	private void notify(final HeadListener headListener, final SCMHead head, final SCMSource source) {
+		if(branchNameMapper.branchNameSupported(head)){
+			headListener.onHead(branchNameMapper.fromSCMHead(head), source);
+		}
+	}
+
+	/**
+	 * Receives the heads while the fetch is still running. It is called from the fetch threads 
+	 * of all sources concurrently and must return quickly. A branch may be reported by more than 
+	 * one source; the source that wins is only known from the {@link FetchResult}.
+	 */
+	interface HeadListener{
+		void onHead(BranchId branch, SCMSource source);
+	}
+
+	static final class FetchResult{
+		private final ImmutableSortedMap<BranchId,SCMSource> sources;
+		private final ImmutableSortedMap<BranchId,SCMRevision> revisions;
+		private final boolean complete;
+		
+		private FetchResult(final ImmutableSortedMap<BranchId, SCMSource> sources, 
+				final ImmutableSortedMap<BranchId,SCMRevision> revisions, final boolean complete) {
+			this.sources = sources;
+			this.revisions = revisions;
+			this.complete = complete;
+		}
+
+		ImmutableSortedSet<BranchId> branches(){
+			return sources.keySet();
+		}
+		
+		SCMSource source(final BranchId branch){
+			final SCMSource source = sources.get(branch);
+			if(source==null) throw new IllegalArgumentException(format("No source for {}.", branch));
+			return source;
+		}
+
+		/**
+		 * @return the head revisions of the branches, as far as reported by their source. Revisions 
+		 * are compared by {@link SCMRevision#equals(Object)}, their string form is for display only.
+		 */
+		ImmutableSortedMap<BranchId,SCMRevision> revisions(){
+			return revisions;
+		}
+
+		/**
+		 * @return false if at least one source could not be fetched.
+		 */
+		boolean isComplete(){
+			return complete;
+		}
+	}
+
+}
@@ -0,0 +1,223 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.impl;
+
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.triggers.SCMTrigger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zalando.jenkins.multibranch.BranchId;
+import org.zalando.jenkins.multibranch.BranchNameMapper;
+import org.zalando.jenkins.multibranch.NewBranchBuildPolicy;
+import org.zalando.jenkins.multibranch.NewBranchBuildPolicy.Mode;
+import org.zalando.jenkins.multibranch.SubProject;
+import org.zalando.jenkins.multibranch.SubProjectRepository;
+import org.zalando.jenkins.multibranch.SubProjectRepository.ProjectDoesNotExixtException;
+import org.zalando.jenkins.multibranch.util.Duration;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+
+/**
+ * Triggers the builds of newly detected branches according to the configured 
+ * {@link NewBranchBuildPolicy}. In {@link Mode#STAGGERED} mode, the branches are queued 
+ * (newest first) and at most {@link NewBranchBuildPolicy#maxBuildsPerMinute()} builds 
+ * are triggered per minute. The queue is persisted, so deferred builds survive a restart.
+ */
+final class NewBranchBuildScheduler<P extends AbstractProject<P,R>,R extends AbstractBuild<P,R>> {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(NewBranchBuildScheduler.class);
+	
+	static final String PENDING_FILE_NAME = "pending-branch-builds.txt";
+	
+	private static final Duration SLOT = Duration.of(1, TimeUnit.MINUTES);
+
+	private final SubProjectRepository<P> subProjectRegistry;
+	private final Comparator<BranchId> newestFirst;
+	private final Supplier<NewBranchBuildPolicy> policySupplier;
+	private final ScheduledExecutorService executor;
+	private final Path pendingFile;
+	
+	private final List<BranchId> pending = new ArrayList<>();
+	private ScheduledFuture<?> drainTask;
+	private long lastDrain;
+
+	NewBranchBuildScheduler(
+			final SubProjectRepository<P> subProjectRegistry,
+			final BranchNameMapper branchNameMapper,
+			final Function<BranchId, Date> lastChangeSupplier,
+			final Supplier<NewBranchBuildPolicy> policySupplier,
+			final ScheduledExecutorService executor,
+			final Path rootDirectory) {
+		this.subProjectRegistry = subProjectRegistry;
+		newestFirst = Functions.newestFirst(lastChangeSupplier);
+		this.policySupplier = policySupplier;
+		this.executor = executor;
+		pendingFile = rootDirectory.resolve(PENDING_FILE_NAME);
+		loadPending(branchNameMapper);
+	}
+	
+	NewBranchBuildPolicy policy(){
+		final NewBranchBuildPolicy policy = policySupplier.get();
+		return policy==null ? NewBranchBuildPolicy.DEFAULT : policy;
+	}
+
+	/**
+	 * @return the given branches, the most recently changed first.
+	 */
+	List<BranchId> newestFirst(final Collection<BranchId> branches){
+		final List<BranchId> result = new ArrayList<>(branches);
+		Collections.sort(result, newestFirst);
+		return result;
+	}
+	
+	void trigger(final BranchId branch) throws ProjectDoesNotExixtException{
+		final SubProject<P> project = subProjectRegistry.getProject(branch);
+		final SCMTrigger.SCMTriggerCause cause = new SCMTrigger.SCMTriggerCause("New branch detected.");
+		project.delegate().scheduleBuild(cause);
+	}
+
+	/**
+	 * Adds the branches to the queue of deferred builds.
+	 * @return the number of branches waiting for their build.
+	 */
+	synchronized int enqueue(final Collection<BranchId> branches){
+		final Set<BranchId> all = new LinkedHashSet<>(pending);
+		all.addAll(branches);
+		pending.clear();
+		pending.addAll(newestFirst(all));
+		persist();
+		if(!pending.isEmpty()) scheduleDrain();
+		return pending.size();
+	}
+
+	private void scheduleDrain() {
+		assert Thread.holdsLock(this);
+		if(drainTask==null){
+			final long delay = Math.max(0L, lastDrain + SLOT.toMillis() - System.currentTimeMillis());
+			drainTask = executor.schedule(new Runnable(){
+				@Override
+				public void run() {
+					try{
+						drain();
+					} catch(final Throwable t){
+						LOG.error("Triggering deferred branch builds failed.", t);
+					}
+				}}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private void drain(){
+		final List<BranchId> batch;
+		synchronized(this){
+			drainTask = null;
+			lastDrain = System.currentTimeMillis();
+			final NewBranchBuildPolicy policy = policy();
+			if(policy.mode()==Mode.OFF){
+				LOG.info("Dropping {} deferred branch builds, because building new branches has been disabled.", 
+						pending.size());
+				batch = Collections.emptyList();
+				pending.clear();
+			}else{
+				final int count = policy.mode()==Mode.IMMEDIATE ? 
+						pending.size() : Math.min(pending.size(), policy.maxBuildsPerMinute());
+				final List<BranchId> head = pending.subList(0, count);
+				batch = new ArrayList<>(head);
+				head.clear();
+			}
+			persist();
+			if(!pending.isEmpty()) scheduleDrain();
+		}
+		for(final BranchId branch: batch){
+			try {
+				trigger(branch);
+				LOG.info("Triggered deferred build of new branch {}.", branch);
+			} catch (final ProjectDoesNotExixtException e) {
+				LOG.info("Skipped deferred build of {}, because the project does not exist any more.", branch);
+			} catch (final Exception e) {
+				LOG.warn(format("Could not trigger deferred build of {}.", branch), e);
+			}
+		}
+	}
+
+	private void loadPending(final BranchNameMapper branchNameMapper) {
+		if(Files.exists(pendingFile)){
+			try {
+				for(final String line: Files.readAllLines(pendingFile, StandardCharsets.UTF_8)){
+					final String projectName = line.trim();
+					if(!projectName.isEmpty() && branchNameMapper.projectNameSupported(projectName)){
+						pending.add(branchNameMapper.fromProjectName(projectName));
+					}
+				}
+			} catch (final IOException e) {
+				LOG.warn(format("Could not read deferred branch builds from {}.", pendingFile), e);
+			}
+			if(!pending.isEmpty()){
+				LOG.info("Loaded {} deferred branch builds from {}.", pending.size(), pendingFile);
+				synchronized(this){
+					//Give Jenkins some time to finish startup:
+					lastDrain = System.currentTimeMillis();
+					scheduleDrain();
+				}
+			}
+		}
+	}
+
+	private void persist() {
+		assert Thread.holdsLock(this);
+		try {
+			if(pending.isEmpty()) Files.deleteIfExists(pendingFile);
+			else{
+				final List<String> lines = new ArrayList<>(pending.size());
+				for(final BranchId branch: pending) lines.add(branch.toProjectName());
+				final Path tmpFile = pendingFile.resolveSibling(PENDING_FILE_NAME+".tmp");
+				Files.write(tmpFile, lines, StandardCharsets.UTF_8);
+				Files.move(tmpFile, pendingFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		} catch (final IOException e) {
+			LOG.warn(format("Could not save deferred branch builds to {}.", pendingFile), e);
+		}
+	}
+
+}
@@ -24,38 +24,59 @@
 package org.zalando.jenkins.multibranch.impl;
 
 import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+import hudson.BulkChange;
 import hudson.XmlFile;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Item;
 import hudson.model.ItemGroup;
+import hudson.model.Items;
+import hudson.model.JobProperty;
+import hudson.model.Project;
 import hudson.scm.NullSCM;
 import hudson.scm.SCM;
+import hudson.triggers.SCMTrigger;
+import hudson.triggers.Trigger;
 
+import java.io.IOException;
+import java.util.Collection;
 import java.util.concurrent.Callable;
 
+import jenkins.model.Jenkins;
 import jenkins.scm.api.SCMSource;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.zalando.jenkins.multibranch.SubProject;
+import org.zalando.jenkins.multibranch.util.ProjectUtils;
+
+import com.google.common.collect.ImmutableList;
 
 class ProjectSynchronizer<P extends AbstractProject<P,R>,R extends AbstractBuild<P,R>> implements Callable<Void>{
 	
+	private static final Logger LOG = LoggerFactory.getLogger(ProjectSynchronizer.class);
+	
 	private final ItemGroup<? extends Item> parentProject;
 	private final SubProject<P> templateProject;
 	private final SubProject<P> subProject;
+	private final TemplateConfigCache templateConfig;
 	private final SCMSource scmSource;
+	private final boolean disablePolling;
 	private final SyncListener listener;
 	
 	
 	
 	ProjectSynchronizer(final ItemGroup<? extends Item> parentProject,
 			final SubProject<P> templateProject, final SubProject<P> subProject,
-			final SCMSource scmSource, final SyncListener listener) {
+			final TemplateConfigCache templateConfig,
+			final SCMSource scmSource, final boolean disablePolling, final SyncListener listener) {
 		super();
 		this.parentProject = parentProject;
 		this.templateProject = templateProject;
 		this.subProject = subProject;
+		this.templateConfig = templateConfig;
 		this.scmSource = scmSource;
+		this.disablePolling = disablePolling;
 		this.listener = listener;
 	}
 
@@ -65,30 +86,97 @@ class ProjectSynchronizer<P extends AbstractProject<P,R>,R extends AbstractBuild
 	public Void call() throws Exception {
 		if(subProject.isTemplate()) throw new UnsupportedOperationException();
 		listener.info("Syncing configuration to project {}.", subProject.name());
-		final XmlFile configFile = templateProject.delegate().getConfigFile();
 		final P delegate = subProject.delegate();
-		configFile.unmarshal(delegate);
+		//Suppress the save() calls of the individual setters; the project is saved once at the end:
+		final BulkChange bulkChange = new BulkChange(delegate);
+		try{
+			final SCM oldScm = delegate.getScm();
+			final Collection<Trigger<?>> oldTriggers = ImmutableList.copyOf(delegate.getTriggers().values());
+			templateConfig.unmarshal(delegate);
+			if(disablePolling){
+				//Changes are detected centrally by the branch sync:
+				delegate.removeTrigger(Jenkins.getInstance().getDescriptorByType(SCMTrigger.DescriptorImpl.class));
+			}
+	
+			/*
+			 * Build new SCM with the URL and branch already set.
+			 *
+			 * SCM must be set first since getRootDirFor(project) will give
+			 * the wrong location during save, load, and elsewhere if SCM
+			 * remains null (or NullSCM).
+			 */
+			final SCM scm = scmSource.build(subProject.branch().toSCMHead());
+			if(scm==null|| scm instanceof NullSCM) throw new IllegalStateException(format("No SCM for {}.", subProject));
+			delegate.setScm(equivalent(oldScm, scm) ? oldScm : scm);
+	
+			// Work-around for JENKINS-21017
+			delegate.setCustomWorkspace(
+					templateProject.delegate().getCustomWorkspace());
+			
+			delegate.makeDisabled(false);
+	
+			saveIfChanged(delegate, bulkChange);
+	
+			//onLoad() is the fallback if the lightweight update is not possible:
+			if(!(subProject.isLoaded() && delegate instanceof Project && applyConfig(delegate, oldTriggers))){
+				delegate.onLoad(parentProject, subProject.name());
+				subProject.setLoaded();
+			}
+		} finally{
+			bulkChange.abort();
+		}
+		return null;
+		}
 
-		/*
-		 * Build new SCM with the URL and branch already set.
-		 *
-		 * SCM must be set first since getRootDirFor(project) will give
-		 * the wrong location during save, load, and elsewhere if SCM
-		 * remains null (or NullSCM).
-		 */
-		final SCM scm = scmSource.build(subProject.branch().toSCMHead());
-		if(scm==null|| scm instanceof NullSCM) throw new IllegalStateException(format("No SCM for {}.", subProject));
-		delegate.setScm(scm);
+	/**
+	 * Writes the configuration file only if its content would change. This avoids rewriting 
+	 * (identical) configuration files of all sub-projects on every sync.
+	 */
+	private void saveIfChanged(final P delegate, final BulkChange bulkChange) throws IOException {
+		final XmlFile configFile = delegate.getConfigFile();
+		if(configFile.exists() && 
+				Items.XSTREAM.toXML(delegate).equals(withoutXmlDeclaration(configFile.asString()))){
+			LOG.debug("Configuration of {} is unchanged. Not saving it.", subProject);
+		}
+		else bulkChange.commit();
+	}
 
-		// Work-around for JENKINS-21017
-		delegate.setCustomWorkspace(
-				templateProject.delegate().getCustomWorkspace());
-		
-		delegate.makeDisabled(false);
+	private static String withoutXmlDeclaration(final String xml) {
+		if(!xml.startsWith("<?xml")) return xml;
+		else{
+			int start = xml.indexOf("?>")+2;
+			while(start<xml.length() && (xml.charAt(start)=='\r' || xml.charAt(start)=='\n')) start++;
+			return xml.substring(start);
+		}
+	}
 
-		delegate.onLoad(parentProject, subProject.name());
-		return null;
+	/**
+	 * Lightweight replacement for {@link AbstractProject#onLoad(ItemGroup, String)} after the 
+	 * configuration has been replaced: Attaches the new configuration objects to the project and 
+	 * restarts the triggers, but does not reload the builds.
+	 * @return false if the configuration could not be applied completely.
+	 */
+	private boolean applyConfig(final P delegate, final Collection<Trigger<?>> oldTriggers) {
+		final Project<?,?> project = (Project<?,?>) delegate;
+		project.getBuildersList().setOwner(project);
+		project.getPublishersList().setOwner(project);
+		project.getBuildWrappersList().setOwner(project);
+		for(final JobProperty<? super P> property: delegate.getAllProperties()){
+			if(!ProjectUtils.setOwner(property, delegate)) return false;
+		}
+		for(final Trigger<?> trigger: oldTriggers){
+			trigger.stop();
 		}
+		for (@SuppressWarnings("rawtypes") final Trigger trigger : delegate.getTriggers().values()) {
+			trigger.start(delegate, false);
+		}
+		return ProjectUtils.updateTransientActions(delegate);
+	}
+
+	private static boolean equivalent(final SCM scm1, final SCM scm2) {
+		if(scm1==null || scm2==null || scm1.getClass()!=scm2.getClass()) return false;
+		else return Items.XSTREAM.toXML(scm1).equals(Items.XSTREAM.toXML(scm2));
 	}
 
+	}
 
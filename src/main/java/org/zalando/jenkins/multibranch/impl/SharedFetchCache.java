@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.impl;
+
+import hudson.model.Items;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import jenkins.scm.api.SCMHead;
+import jenkins.scm.api.SCMRevision;
+import jenkins.scm.api.SCMSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zalando.jenkins.multibranch.util.Duration;
+
+/**
+ * Instance-wide cache of fetched heads, so that multi-branch projects pointing at the same 
+ * repository share one fetch (and one probe pass). Entries expire after {@link #TTL}.
+ * Concurrent requests for the same key wait for the running fetch instead of starting their own 
+ * (single flight). Failed fetches are not cached.
+ * <p/>
+ * Two sources share an entry if they are configured identically except for their id, and if 
+ * the criteria used for the fetch are identical.
+ */
+final class SharedFetchCache {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(SharedFetchCache.class);
+	
+	private static final Duration TTL = Duration.of(
+			Long.getLong(SharedFetchCache.class.getName()+".ttlSeconds", 60L).longValue(), TimeUnit.SECONDS);
+	
+	//XStream indents the children of the root element by two spaces:
+	private static final Pattern ID_ELEMENT = Pattern.compile("^  <id>[^<]*</id>\\r?\\n", Pattern.MULTILINE);
+	
+	private static final SharedFetchCache INSTANCE = new SharedFetchCache();
+	
+	static SharedFetchCache get(){
+		return INSTANCE;
+	}
+	
+	private final ConcurrentMap<String,Entry> entries = new ConcurrentHashMap<>();
+	
+	private SharedFetchCache(){}
+	
+	/**
+	 * @return a key identifying the repository and the configuration of the source, plus the criteria.
+	 */
+	static String key(final SCMSource source, final String criteriaKey){
+		return source.getDescriptor().getId()+'\n'+criteriaKey+'\n'+withoutId(Items.XSTREAM.toXML(source));
+	}
+
+	/**
+	 * @return the serialized source without its top-level {@code <id>} element, so that sources 
+	 * differing only in their id produce the same key.
+	 */
+	private static String withoutId(final String xml) {
+		return ID_ELEMENT.matcher(xml).replaceFirst("");
+	}
+
+	/**
+	 * Returns the cached heads for the key, or loads them in the calling thread. If another thread 
+	 * is loading them already, waits for its result.
+	 */
+	Heads fetch(final String key, final Callable<Heads> loader) throws InterruptedException, ExecutionException{
+		evictExpired();
+		final Entry entry = new Entry(loader);
+		final Entry existing = entries.putIfAbsent(key, entry);
+		if(existing!=null) return existing.get();
+		else{
+			entry.run();
+			try{
+				return entry.get();
+			} catch(final ExecutionException | RuntimeException e){
+				entries.remove(key, entry);
+				throw e;
+			}
+		}
+	}
+
+	private void evictExpired() {
+		final long now = System.currentTimeMillis();
+		for(final Iterator<Entry> it = entries.values().iterator(); it.hasNext();){
+			final Entry entry = it.next();
+			if(entry.isDone() && now-entry.created > TTL.toMillis()){
+				it.remove();
+				LOG.debug("Evicted fetch result from {}.", Duration.ofMllis(now-entry.created));
+			}
+		}
+	}
+	
+	private static final class Entry extends FutureTask<Heads>{
+		private final long created = System.currentTimeMillis();
+		private Entry(final Callable<Heads> loader) {
+			super(loader);
+		}
+	}
+
+	/**
+	 * The accepted heads of a source with their revision (may be null) and the time of their 
+	 * last change, as reported to the criteria.
+	 */
+	static final class Heads{
+		private final Map<SCMHead,SCMRevision> revisions;
+		private final Map<String,Long> lastChanges;
+		private final long fetched = System.currentTimeMillis();
+		
+		Heads(final Map<SCMHead,SCMRevision> revisions, final Map<String,Long> lastChanges) {
+			this.revisions = Collections.unmodifiableMap(new HashMap<>(revisions));
+			this.lastChanges = Collections.unmodifiableMap(new HashMap<>(lastChanges));
+		}
+		
+		Map<SCMHead,SCMRevision> revisions(){
+			return revisions;
+		}
+
+		/**
+		 * @return the time of the last change by head name.
+		 */
+		Map<String,Long> lastChanges(){
+			return lastChanges;
+		}
+		
+		Duration age(){
+			return Duration.ofMllis(Math.max(0L, System.currentTimeMillis()-fetched));
+		}
+	}
+
+}
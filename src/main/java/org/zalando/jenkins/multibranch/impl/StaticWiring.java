@@ -25,11 +25,12 @@ package org.zalando.jenkins.multibranch.impl;
 
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Computer;
 import hudson.model.ItemGroup;
 
 import java.nio.file.Path;
 import java.util.Date;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import jenkins.model.Jenkins;
@@ -39,11 +40,15 @@ import jenkins.util.Timer;
 import org.zalando.jenkins.multibranch.BranchId;
 import org.zalando.jenkins.multibranch.BranchNameMapper;
 import org.zalando.jenkins.multibranch.BranchesSynchronizer;
+import org.zalando.jenkins.multibranch.BuildHistoryBudget;
+import org.zalando.jenkins.multibranch.NewBranchBuildPolicy;
 import org.zalando.jenkins.multibranch.SubProjectRepository;
 import org.zalando.jenkins.multibranch.util.AgeFilter;
 import org.zalando.jenkins.multibranch.util.Duration;
 
 import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 
@@ -55,6 +60,10 @@ public final class StaticWiring<PA extends ItemGroup<P>, P extends AbstractProje
 	private final BranchesSynchronizer<P>    branchesSynchronizer;
 	private final SCMSourceCriteria          listeningBranchPreseletor;
 	private final SubProjectRepository<P>    subProjectRepository;
+	private final TemplateConfigCache        templateConfig;
+	private final AdaptiveSyncInterval       syncInterval = new AdaptiveSyncInterval();
+	private final IdleProjectUnloader<P,R>   idleProjectUnloader;
+	private final BuildHistoryRetention<P,R> buildHistoryRetention;
 	private Integer normalCount;
 	
 	public StaticWiring(
@@ -67,7 +76,12 @@ public final class StaticWiring<PA extends ItemGroup<P>, P extends AbstractProje
 		    final String             templateName,
 		    
 		    final Function<String,P> subProjectFactory,
-		    final Long               maxAge
+		    final Long               maxAge,
+		    final Supplier<NewBranchBuildPolicy> newBranchBuildPolicy,
+		    final Supplier<Boolean>  centralChangeDetection,
+		    final Supplier<Boolean>  adaptiveSyncInterval,
+		    final Supplier<Boolean>  archiveRemovedBranches,
+		    final Supplier<BuildHistoryBudget> buildHistoryBudget
 		    ) {
 		
 		mapper = new BranchNameMapperImpl(subProjectsDirectory, templateName);
@@ -80,7 +94,8 @@ public final class StaticWiring<PA extends ItemGroup<P>, P extends AbstractProje
 				templateDir, 
 				templateName,
 				mapper, 
-				subProjectFactory);
+				subProjectFactory,
+				archiveRemovedBranches);
 		
 		subProjectRepository = subProjectRegistry;
 		
@@ -94,21 +109,59 @@ public final class StaticWiring<PA extends ItemGroup<P>, P extends AbstractProje
 		final Function<ImmutableSortedSet<BranchId>, ImmutableSet<BranchId>> branchFilter = 
 				new AgeFilter<>(lastChangeSupplier, normalCount, maxCount, minAge);
 		
+		final Predicate<BranchId> recentlyChanged = new Predicate<BranchId>(){
+			@Override
+			public boolean apply(final BranchId branch) {
+				final Date lastChange = subProjectRegistry.getLastChange(branch);
+				return lastChange!=null && Duration.fromUntil(lastChange, new Date()).compareTo(minAge)<=0;
+			}};
+		
 		final Runnable jenkinsUpdate = new JenkinsUpdate(Jenkins.getInstance());
 		
-		final ExecutorService executor = Timer.get();
-		branchesSynchronizer = new BranchesSynchronizerImpl<P,R>(
-				parentProject, 
+		final ScheduledExecutorService executor = Timer.get();
+		
+		idleProjectUnloader = new IdleProjectUnloader<P,R>(subProjectRegistry, parentProject.getFullName());
+		idleProjectUnloader.start(executor);
+		buildHistoryRetention = new BuildHistoryRetention<P,R>(subProjectRegistry, buildHistoryBudget, 
+				parentProject.getFullName(), subProjectRegistry.trashBin());
+		buildHistoryRetention.start(executor);
+		
+		final NewBranchBuildScheduler<P,R> buildScheduler = new NewBranchBuildScheduler<P,R>(
 				subProjectRegistry, 
 				mapper, 
-				branchFilter, 
-				jenkinsUpdate, 
-				executor);
+				lastChangeSupplier, 
+				newBranchBuildPolicy, 
+				executor, 
+				rootDirectory);
 		
-		listeningBranchPreseletor = new ListeningBranchPreselector(
+		final ListeningBranchPreselector preselector = new ListeningBranchPreselector(
 				mapper, 
 				maxAge, 
 				subProjectRegistry);
+		listeningBranchPreseletor = preselector;
+		
+		final MultiSourceFetcher fetcher = new MultiSourceFetcher(mapper, preselector, Computer.threadPoolForRemoting);
+		
+		templateConfig = new TemplateConfigCache(templateDir.resolve(SubProjectFactoryImpl.CONFIG_FILE_NAME));
+		
+		branchesSynchronizer = new BranchesSynchronizerImpl<P,R>(
+				parentProject, 
+				subProjectRegistry, 
+				fetcher, 
+				branchFilter, 
+				jenkinsUpdate, 
+				buildScheduler,
+				templateConfig,
+				centralChangeDetection,
+				adaptiveSyncInterval,
+				new ChangeDetector(mapper, rootDirectory),
+				SyncScheduler.get(),
+				syncInterval,
+				new SyncJournal(mapper, rootDirectory),
+				Functions.newestFirst(lastChangeSupplier),
+				recentlyChanged,
+				maxCount.intValue(),
+				Computer.threadPoolForRemoting);
 	}
 
 	
@@ -127,5 +180,28 @@ public final class StaticWiring<PA extends ItemGroup<P>, P extends AbstractProje
 	public SCMSourceCriteria getListeningBranchPreseletor() {
 		return listeningBranchPreseletor;
 	}
+
+	/**
+	 * Must be called whenever the template project has been saved.
+	 */
+	public void onTemplateSaved() {
+		templateConfig.invalidate();
+	}
+
+	/**
+	 * Stops the background tasks. Must be called when the project is deleted.
+	 */
+	public void stop() {
+		idleProjectUnloader.stop();
+		buildHistoryRetention.stop();
+	}
+
+	/**
+	 * @return true if a periodic sync should be done now, according to the churn observed in 
+	 * the previous syncs. Only relevant if the project uses the adaptive sync interval.
+	 */
+	public boolean isPeriodicSyncDue() {
+		return syncInterval.isDue();
+	}
 	
 }
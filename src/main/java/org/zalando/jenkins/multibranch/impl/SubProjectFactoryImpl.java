@@ -143,6 +143,7 @@ implements SubProjectFactory<P>{
 //			project.disable();
 //		}
 		final SubProjectImpl<P> result = new SubProjectImpl<P>(branch, subProjectDir, delegate);
+		result.setLoaded();
 		return result;
 	}
 
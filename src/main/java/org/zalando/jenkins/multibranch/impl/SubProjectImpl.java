@@ -40,6 +40,9 @@ class SubProjectImpl<P> implements SubProject<P>{
 	
 	private Date lastChange;
 	private boolean broken;
+	private boolean loaded;
+	private boolean removed;
+	private boolean restored;
 
 	
 	SubProjectImpl(final BranchId branch, final Path rootDir, final P delegate) {
@@ -66,6 +69,36 @@ class SubProjectImpl<P> implements SubProject<P>{
 		broken = true;		
 	}
 
+	@Override
+	public synchronized boolean isLoaded() {
+		return loaded;
+	}
+
+	@Override
+	public synchronized void setLoaded() {
+		loaded = true;
+	}
+
+	@Override
+	public synchronized boolean isRemoved() {
+		return removed;
+	}
+
+	@Override
+	public synchronized void setRemoved() {
+		removed = true;
+	}
+
+	@Override
+	public synchronized boolean isRestored() {
+		return restored;
+	}
+
+	@Override
+	public synchronized void setRestored() {
+		restored = true;
+	}
+
 	@Override
 	public synchronized Date lastScmChange() {
 		return lastChange;
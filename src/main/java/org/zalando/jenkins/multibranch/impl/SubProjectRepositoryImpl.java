@@ -26,15 +26,26 @@ package org.zalando.jenkins.multibranch.impl;
 import static com.google.common.collect.ImmutableSortedSet.copyOf;
 import static com.google.common.collect.Lists.transform;
 import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+import hudson.FilePath;
 import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Executor;
 import hudson.model.ItemGroup;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.listeners.ItemListener;
+import hudson.triggers.Trigger;
 
 import java.io.IOException;
 import java.nio.file.DirectoryStream.Filter;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -45,20 +56,34 @@ import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
+import jenkins.model.Jenkins;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zalando.jenkins.multibranch.BranchId;
 import org.zalando.jenkins.multibranch.BranchNameMapper;
 import org.zalando.jenkins.multibranch.SubProject;
 import org.zalando.jenkins.multibranch.SubProjectRepository;
+import org.zalando.jenkins.multibranch.util.BranchArchive;
+import org.zalando.jenkins.multibranch.util.BranchArchive.Restoration;
+import org.zalando.jenkins.multibranch.util.Consumer;
 import org.zalando.jenkins.multibranch.util.DiagnosticLock;
 import org.zalando.jenkins.multibranch.util.Duration;
+import org.zalando.jenkins.multibranch.util.TrashBin;
 
 import com.google.common.base.Function;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Maps;
 
+/**
+ * Holds the sub-projects of one multi-branch project. Operations on a single branch (create, 
+ * load, delete) are serialized per lock stripe, selected by the hash of the branch, so that 
+ * operations on different branches can run in parallel. The global lock only guards 
+ * initialization and the template project. Readers get an immutable sorted view, which is 
+ * rebuilt on the first read after a modification.
+ */
 class SubProjectRepositoryImpl<PA extends ItemGroup<P>, P extends AbstractProject<P,R>, R extends AbstractBuild<P,R>>
 extends SubProjectFactoryImpl<PA,P,R>
 implements SubProjectRepository<P>{
@@ -67,26 +92,49 @@ implements SubProjectRepository<P>{
 	
 	private static final ConcurrentMap<Path,Object> USED_PATHS = new ConcurrentHashMap<>();
 	
+	static final String TRASH_DIR_NAME = "trash";
+	
+	static final String ARCHIVE_DIR_NAME = "archive";
+	
 	private static final Duration LOCK_TIMEOUT = Duration.of(60, TimeUnit.SECONDS);
+	
+	private static final Duration ABORT_TIMEOUT = Duration.of(
+			Long.getLong(SubProjectRepositoryImpl.class.getName()+".abortTimeoutSeconds", 30L).longValue(), TimeUnit.SECONDS);
+	
+	private static final int LOCK_STRIPES = 
+			Integer.getInteger(SubProjectRepositoryImpl.class.getName()+".lockStripes", 16).intValue();
 
 	private final DiagnosticLock lock;
+	private final DiagnosticLock[] stripes;
+	//Guarded by itself, held only for map access:
 	private final Map<BranchId,SubProject<P>> projects = Maps.newHashMap();
+	private ImmutableSortedSet<SubProject<P>> view;
 	private final Function<String,P> delegateConstructor;
-	private final Map<BranchId,Date> branchChangeDates = new WeakHashMap<>();
+	private final Map<BranchId,Date> branchChangeDates = Collections.synchronizedMap(new WeakHashMap<BranchId,Date>());
+	private final TrashBin trashBin;
+	private final BranchArchive archive;
+	private final Supplier<Boolean> archiveRemoved;
 	
 	private SubProject<P> templateProject;
 
-	private boolean initialized;
+	private volatile boolean initialized;
+	private boolean initializing;
 
 	public SubProjectRepositoryImpl(final Path parentDir, final Class<P> projectClass, final PA parent,
 			final Path subProjectsDirectory, final Path templateDir, final String templateName,
 			final BranchNameMapper nameMapper, 
-			final Function<String,P> delegateConstructor) {
+			final Function<String,P> delegateConstructor,
+			final Supplier<Boolean> archiveRemoved) {
 		super(projectClass, parent, subProjectsDirectory, templateDir, templateName,
 				nameMapper);
 		checkOnlyOneInstancePerDirectory(parentDir);
 		this.delegateConstructor = delegateConstructor;
+		trashBin = new TrashBin(parentDir.resolve(TRASH_DIR_NAME));
+		archive = new BranchArchive(parentDir.resolve(ARCHIVE_DIR_NAME), trashBin);
+		this.archiveRemoved = archiveRemoved;
 		lock = new DiagnosticLock(parent.getFullName(), LOCK_TIMEOUT);
+		stripes = new DiagnosticLock[Math.max(1, LOCK_STRIPES)];
+		for(int i=0; i<stripes.length; i++) stripes[i] = new DiagnosticLock(parent.getFullName()+"#"+i, LOCK_TIMEOUT);
 	}
 
 	private static void checkOnlyOneInstancePerDirectory(final Path parentDir) {
@@ -95,6 +143,13 @@ implements SubProjectRepository<P>{
 			throw new IllegalStateException(format("There is already a project handling {}", parentDir));
 	}
 
+	/**
+	 * @return the trash bin of this repository, for other users of the same directory.
+	 */
+	TrashBin trashBin(){
+		return trashBin;
+	}
+
 	private void lock(){
 		lock.lock();
 	}
@@ -103,43 +158,70 @@ implements SubProjectRepository<P>{
 		lock.unlock();
 	}
 	
+	/**
+	 * @return the lock for all modifications of the given branch. It must be acquired after 
+	 * the global lock, if both are needed.
+	 */
+	private DiagnosticLock stripe(final BranchId branch){
+		return stripes[(branch.hashCode() & Integer.MAX_VALUE) % stripes.length];
+	}
+	
+	private void putProject(final BranchId branch, final SubProject<P> project){
+		synchronized(projects){
+			projects.put(branch, project);
+			view = null;
+		}
+	}
+	
+	private @Nullable SubProject<P> removeProject(final BranchId branch){
+		synchronized(projects){
+			view = null;
+			return projects.remove(branch);
+		}
+	}
+	
 	
 	@Override
 	public ImmutableSortedSet<SubProject<P>> getProjects() {
-		lock();
-		try{
-			ensureInitialized();
-			return ImmutableSortedSet.copyOf(projects.values());
-		} finally{unlock();}
+		ensureInitialized();
+		synchronized(projects){
+			if(view==null) view = ImmutableSortedSet.copyOf(projects.values());
+			return view;
+		}
 	}
 
 	@Override
 	public void ensureInitialized() {
-		lock.checkLocked();
-		if(!initialized){
-			LOG.info("Initializing {}.", this);
-			assert projects.isEmpty() && templateProject==null;
-			boolean success = false;
-			try {
-				initialized = true; //Set this now to prevent recursion.
-				loadFromDisk();
-				success = true;
-			} catch (final IOException e) {
-				throw new IllegalStateException("Initialization failed.");
-			} finally{
-				if(!success) initialized = false;
+		if(initialized) return;
+		lock();
+		try{
+			//Recursive calls during initialization (e.g. via getTemplateProject()) return immediately:
+			if(!initialized && !initializing){
+				LOG.info("Initializing {}.", this);
+				assert projects.isEmpty() && templateProject==null;
+				initializing = true;
+				try {
+					final Date start = new Date();
+					loadFromDisk();
+					final int count = getProjects().size();
+					LOG.info("Initialized {} with {} sub-projects in {}.", this, count, Duration.since(start));
+					initialized = true;
+				} catch (final IOException e) {
+					throw new IllegalStateException("Initialization failed.");
+				} finally{
+					initializing = false;
+				}
 			}
-		}		
+		} finally{unlock();}
 	}
 
 	@Override
 	@Nullable
 	public SubProject<P> getOptionalProject(final BranchId branch) {
-		lock();
-		try{
-			ensureInitialized();
+		ensureInitialized();
+		synchronized(projects){
 			return projects.get(branch);
-		} finally{unlock();}
+		}
 	}
 	
 	@Override
@@ -161,22 +243,90 @@ implements SubProjectRepository<P>{
 		return copyOf(transform(ImmutableList.copyOf(getProjects()), Functions.BRANCH_ID));
 	}
 
+	@Override
+	public void withProject(final BranchId branch, final Consumer<SubProject<P>> action) throws Exception {
+		ensureInitialized();
+		final DiagnosticLock stripe = stripe(branch);
+		stripe.lock();
+		try{
+			final SubProject<P> project = getOptionalProject(branch);
+			if(project==null || project.isRemoved()) throw new ProjectDoesNotExixtException(
+					format("The sub-project for {} does not exist (any more).", branch));
+			action.accept(project);
+		} finally{stripe.unlock();}
+	}
+
 	@Override
 	public SubProject<P> createNewSubProject(final BranchId branch) throws ProjectAlreadyExixtsException, IOException {
-		lock();
+		ensureInitialized();
+		if(getOptionalProject(branch)!=null) throw new ProjectAlreadyExixtsException(format("Cannot create new sub-project {}, because it already exists.", branch));
+		//Unpacking may take a while, so it is done before locking:
+		final Restoration restoration = prepareRestore(branch);
+		final DiagnosticLock stripe = stripe(branch);
+		stripe.lock();
 		try{
-			ensureInitialized();
-			if(projects.containsKey(branch)) throw new ProjectAlreadyExixtsException(format("Cannot create new sub-project {}, because it already exists.", branch));
+			if(getOptionalProject(branch)!=null) throw new ProjectAlreadyExixtsException(format("Cannot create new sub-project {}, because it already exists.", branch));
+			if(restoration!=null){
+				final SubProject<P> restored = restore(branch, restoration);
+				if(restored!=null) return restored;
+			}
 			SubProject<P> project;
 			try {
 				project = super.createNewSubProject(branch);
 			} catch (final ProjectAlreadyExixtsException e) {
 				throw new IllegalStateException(e);
 			}
-			projects.put(branch, project);
+			putProject(branch, project);
 			LOG.info("Created new project {} in directory {}.", project, project.rootDirectory());
 			return project;
-		} finally{unlock();}
+		} finally{
+			stripe.unlock();
+			if(restoration!=null) restoration.discard();
+		}
+	}
+
+	/**
+	 * @return the prepared restoration of the branch from the archive, or null if there is no 
+	 * archive for the branch or it could not be unpacked.
+	 */
+	private @Nullable Restoration prepareRestore(final BranchId branch){
+		try {
+			return archive.prepareRestore(branch.toProjectName());
+		} catch (final IOException e) {
+			LOG.warn(format("Could not restore {} from the archive. Creating it from scratch.", branch), e);
+			return null;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Moves the prepared directory into place and registers the sub-project.
+	 * @return the restored sub-project, or null if it could not be restored.
+	 */
+	private @Nullable SubProject<P> restore(final BranchId branch, final Restoration restoration){
+		stripe(branch).checkLocked();
+		final Path projectDir = subProjectsDirectory.resolve(branch.toProjectName());
+		if(Files.exists(projectDir)) return null;
+		try {
+			restoration.complete(projectDir);
+			final SubProject<P> project = super.loadExistingSubProject(branch, projectDir);
+			project.setRestored();
+			putProject(branch, project);
+			LOG.info("Restored project {} from the archive into directory {}.", project, projectDir);
+			return project;
+		} catch (final Exception e) {
+			LOG.warn(format("Could not restore {} from the archive. Creating it from scratch.", branch), e);
+			if(Files.exists(projectDir)){
+				try {
+					trashBin.moveToTrash(projectDir);
+				} catch (final IOException e1) {
+					LOG.error(format("Could not remove {}.", projectDir), e1);
+				}
+			}
+			return null;
+		}
 	}
 
 	@Override
@@ -192,14 +342,17 @@ implements SubProjectRepository<P>{
 	@Override
 	protected SubProject<P> loadExistingSubProject(final BranchId branch, final Path subProjectDir)
 			throws IOException {
-		lock();
+		final DiagnosticLock stripe = stripe(branch);
+		stripe.lock();
 		try{
-			if(projects.containsKey(branch)) throw new IllegalArgumentException();
+			synchronized(projects){
+				if(projects.containsKey(branch)) throw new IllegalArgumentException();
+			}
 			final SubProject<P> project = super.loadExistingSubProject(branch, subProjectDir);
-			projects.put(branch, project);
+			putProject(branch, project);
 			LOG.info("Loaded existing project {} from directory {}.", project, subProjectDir);
 			return project;
-		} finally{unlock();}
+		} finally{stripe.unlock();}
 	}
 
 	
@@ -211,63 +364,139 @@ implements SubProjectRepository<P>{
 				format("Loading is handled by the {} itself and must not be done externally.", SubProjectRepository.class.getSimpleName()));
 	}
 
+	/**
+	 * Unregisters the project and moves its directory to the trash. The actual deletion of the 
+	 * directory happens in the background, so neither the caller nor other users of the repository
+	 * have to wait for it. If removed branches are archived, the directory is packed into the 
+	 * archive instead (also in the background), and restored when the branch is created again.
+	 */
 	@Override
 	public void delete(final BranchId branch) throws IOException,
 			InterruptedException {
-		lock();
+		final SubProject<P> project;
+		boolean movedToTrash = false;
+		ensureInitialized();
+		final SubProject<P> existing = getOptionalProject(branch);
+		if(existing!=null && Files.exists(existing.rootDirectory())){
+			//Stopping running builds may take a while, so this is done before locking:
+			boolean prepared = false;
+			try{
+				prepareForDeletion(existing.delegate());
+				prepared = true;
+			} finally{
+				if(!prepared) existing.setBroken();
+			}
+		}
+		final DiagnosticLock stripe = stripe(branch);
+		stripe.lock();
 		try{
-			ensureInitialized();
 			//Remove first to prevent recursive calls via onDeleted():
-			final SubProject<P> project = projects.remove(branch);
+			project = removeProject(branch);
 			if(project!=null){
-				boolean success = false;
-				try{
-					project.delegate().delete();
-					final Path projectDir = project.rootDirectory();
-					if(Files.exists(projectDir)) throw new RuntimeException(
-							format("Directory {} of project {} has not been removed.", projectDir, project));
-					success = true;
-					LOG.info("Deleted and removed project {} (directory {}).", project, project.rootDirectory());
-				}finally{
-					if(!success){
-						//Add project again if deletion did not work:
-						project.setBroken();
-						projects.put(branch, project);
+				final Path projectDir = project.rootDirectory();
+				//If the directory is gone already, the project has been deleted via its delegate (UI).
+				if(Files.exists(projectDir)){
+					boolean success = false;
+					try{
+						if(project!=existing) prepareForDeletion(project.delegate());
+						if(archiveRemoved.get().booleanValue()) archive.archive(projectDir);
+						else trashBin.moveToTrash(projectDir);
+						movedToTrash = true;
+						success = true;
+						project.setRemoved();
+					}finally{
+						if(!success){
+							//Add project again if deletion did not work:
+							project.setBroken();
+							putProject(branch, project);
+						}
 					}
 				}
+				else project.setRemoved();
 			}
-		} finally{unlock();}
+		} finally{stripe.unlock();}
+		if(movedToTrash){
+			ItemListener.fireOnDeleted(project.delegate());
+			LOG.info("Removed project {} and moved directory {} to trash or archive.", project, project.rootDirectory());
+		} else if(project!=null){
+			LOG.info("Removed project {} (directory {} did not exist any more).", project, project.rootDirectory());
+		}
+	}
+
+	/**
+	 * Does what {@link AbstractProject#delete()} would do before removing the directory: Prevents 
+	 * new builds, aborts the running ones and lets the SCM and the node clean up the workspace.
+	 * Otherwise a running build would keep writing into the moved directory or recreate parts of 
+	 * the original one.
+	 */
+	private void prepareForDeletion(final P delegate) throws IOException, InterruptedException {
+		//Prevent new builds (this also cancels queued ones):
+		delegate.makeDisabled(true);
+		for(final Trigger<?> trigger: delegate.getTriggers().values()){
+			trigger.stop();
+		}
+		abortRunningBuilds(delegate);
+		final FilePath workspace = delegate.getSomeWorkspace();
+		if(workspace!=null){
+			final Node node = delegate.getLastBuiltOn();
+			delegate.getScm().processWorkspaceBeforeDeletion(delegate, workspace, node);
+			if(node!=null) node.getFileSystemProvisioner().discardWorkspace(delegate, workspace);
+		}
+	}
+
+	private void abortRunningBuilds(final P delegate) throws IOException, InterruptedException {
+		if(!delegate.isBuilding()) return;
+		final Jenkins jenkins = Jenkins.getInstance();
+		if(jenkins!=null){
+			for(final Computer computer: jenkins.getComputers()){
+				final List<Executor> executors = new ArrayList<>(computer.getExecutors());
+				executors.addAll(computer.getOneOffExecutors());
+				for(final Executor executor: executors){
+					final Queue.Executable executable = executor.getCurrentExecutable();
+					if(executable instanceof AbstractBuild && ((AbstractBuild<?,?>) executable).getParent()==delegate){
+						LOG.info("Aborting {}, because its project will be deleted.", executable);
+						executor.interrupt(Result.ABORTED);
+					}
+				}
+			}
+		}
+		final long deadline = System.currentTimeMillis() + ABORT_TIMEOUT.toMillis();
+		while(delegate.isBuilding()){
+			if(System.currentTimeMillis()>deadline) throw new IOException(
+					format("The builds of {} did not stop within {}.", delegate.getFullName(), ABORT_TIMEOUT));
+			Thread.sleep(100);
+		}
 	}
 
 
 	@Override
 	public void registerLastChange(final BranchId branch, final Date lastChange) {
-		lock();
-		try{
-			ensureInitialized();
-			branchChangeDates.put(branch, lastChange);
-			final SubProject<P> project = getOptionalProject(branch);
-			if(project!=null) project.setLastScmChange(lastChange);
-		} finally{unlock();}
+		ensureInitialized();
+		branchChangeDates.put(branch, lastChange);
+		final SubProject<P> project = getOptionalProject(branch);
+		if(project!=null) project.setLastScmChange(lastChange);
 		LOG.debug("Registered last change of {} at {}.", branch, lastChange);
 	}
 
 	public @Nullable Date getLastChange(final BranchId branch) {
-		lock();
-		try{
-			ensureInitialized();
-			final Date lastChange = branchChangeDates.get(branch);
-			if(lastChange==null)LOG.warn("Last change date of {} unknown.", branch);
-			return lastChange;
-		} finally{unlock();}
+		ensureInitialized();
+		final Date lastChange = branchChangeDates.get(branch);
+		if(lastChange==null)LOG.warn("Last change date of {} unknown.", branch);
+		return lastChange;
 	}
 
 	@Override
 	protected P createDelegate(final String name) {
-		lock.checkLocked();
+		//Called with the global lock (template) or the stripe of the branch held.
 		return delegateConstructor.apply(name);
 	}
 
+	@Override
+	public String getLockStatistics() {
+		return format("{} (initialization), {} (branches)", 
+				lock.getStatistics(), DiagnosticLock.getStatistics(Arrays.asList(stripes)));
+	}
+
 	@Override
 	public String toString() {
 		return format("{}[{}]",SubProjectRepositoryImpl.class.getSimpleName(), parent);
@@ -276,6 +505,8 @@ implements SubProjectRepository<P>{
 	
 	private void loadFromDisk() throws IOException{
 		lock.checkLocked();
+		trashBin.purgeLeftovers();
+		archive.packLeftovers();
 		getTemplateProject();
 		if (Files.exists(subProjectsDirectory)) {
 			if (!Files.isDirectory(subProjectsDirectory))
@@ -0,0 +1,55 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.impl;
+
+import org.zalando.jenkins.multibranch.util.Duration;
+
+/**
+ * Limits the time of a synchronization run. A run checks its budget at branch boundaries and 
+ * stops when it is exhausted, or when the run has been cancelled.
+ */
+final class SyncBudget {
+	
+	private final Duration budget;
+	private final long deadline;
+	private volatile boolean cancelled;
+	
+	SyncBudget(final Duration budget) {
+		this.budget = budget;
+		deadline = System.currentTimeMillis() + budget.toMillis();
+	}
+	
+	void cancel(){
+		cancelled = true;
+	}
+	
+	boolean isExhausted(){
+		return cancelled || System.currentTimeMillis() > deadline;
+	}
+	
+	String reason(){
+		return cancelled ? "cancelled" : "time budget of "+budget+" exhausted";
+	}
+
+}
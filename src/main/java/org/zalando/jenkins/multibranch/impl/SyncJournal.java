@@ -0,0 +1,285 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.impl;
+
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zalando.jenkins.multibranch.BranchId;
+import org.zalando.jenkins.multibranch.BranchNameMapper;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+
+/**
+ * Write-ahead journal of a synchronization run. Planned operations are written and forced to 
+ * disk before they start (those of branches created while fetching one by one, the others when 
+ * the plan is computed); each completed operation is appended. A run that completes deletes 
+ * the journal. If Jenkins stops during a run, the journal is {@link #recover() recovered} when 
+ * the project is loaded, and a run is started if operations are unfinished. That run processes 
+ * the unfinished operations first, and finished synchronizations are not repeated if neither 
+ * the template nor the source changed since.
+ * <p/>
+ * Half-created sub-project directories (without configuration file) are rolled back when the 
+ * repository is loaded; the journal makes sure that their creation is retried first.
+ */
+final class SyncJournal {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(SyncJournal.class);
+	
+	static final String FILE_NAME = "sync-journal.txt";
+	
+	private static final String RUN = "RUN";
+	private static final String PLAN = "PLAN";
+	private static final String DONE = "DONE";
+	private static final String SEPARATOR = "\t";
+	
+	enum Operation {CREATE, DELETE, SYNC}
+	
+	private final BranchNameMapper branchNameMapper;
+	private final Path journalFile;
+	
+	//Guarded by this:
+	private String templateStamp;
+	private boolean failed;
+	private FileOutputStream out;
+	private Writer writer;
+
+	SyncJournal(final BranchNameMapper branchNameMapper, final Path rootDirectory) {
+		this.branchNameMapper = branchNameMapper;
+		journalFile = rootDirectory.resolve(FILE_NAME);
+	}
+	
+	/**
+	 * Reads the journal left behind by an interrupted run.
+	 */
+	synchronized Recovery recover(){
+		if(!Files.exists(journalFile)) return Recovery.NONE;
+		try{
+			String templateStamp = null;
+			final Map<String,String> plannedSyncs = new HashMap<>();
+			final Set<String> planned = new HashSet<>();
+			final Set<String> done = new HashSet<>();
+			final Set<String> doneSyncs = new HashSet<>();
+			for(final String line: Files.readAllLines(journalFile, StandardCharsets.UTF_8)){
+				final String[] fields = line.split(SEPARATOR, -1);
+				if(fields.length==2 && fields[0].equals(RUN)) templateStamp = fields[1];
+				else if(fields.length==4 && fields[0].equals(PLAN)){
+					planned.add(fields[1]+SEPARATOR+fields[2]);
+					if(fields[1].equals(Operation.SYNC.name())) plannedSyncs.put(fields[2], fields[3]);
+				}
+				else if(fields.length==3 && fields[0].equals(DONE)){
+					done.add(fields[1]+SEPARATOR+fields[2]);
+					if(fields[1].equals(Operation.SYNC.name())) doneSyncs.add(fields[2]);
+				}
+				//Otherwise an incomplete last line (crash while writing).
+			}
+			final ImmutableSortedSet.Builder<BranchId> unfinished = ImmutableSortedSet.naturalOrder();
+			for(final String operation: planned){
+				if(!done.contains(operation)){
+					final String projectName = operation.substring(operation.indexOf(SEPARATOR)+1);
+					if(branchNameMapper.projectNameSupported(projectName)){
+						unfinished.add(branchNameMapper.fromProjectName(projectName));
+					}
+				}
+			}
+			final ImmutableMap.Builder<BranchId,String> synced = ImmutableMap.builder();
+			for(final String projectName: doneSyncs){
+				if(plannedSyncs.containsKey(projectName) && branchNameMapper.projectNameSupported(projectName)){
+					synced.put(branchNameMapper.fromProjectName(projectName), plannedSyncs.get(projectName));
+				}
+			}
+			final Recovery recovery = new Recovery(templateStamp, unfinished.build(), synced.build());
+			LOG.info("Recovered sync journal {}: {} unfinished operations, {} finished synchronizations.", 
+					journalFile, planned.size()-done.size(), doneSyncs.size());
+			return recovery;
+		} catch(final IOException e){
+			LOG.warn(format("Could not read sync journal {}.", journalFile), e);
+			return Recovery.NONE;
+		}
+	}
+	
+	/**
+	 * Starts the journal of a new run. The previous journal is only replaced once the first 
+	 * operation is planned, so runs without operations do not touch the disk.
+	 */
+	synchronized void begin(final String templateStamp){
+		close();
+		this.templateStamp = templateStamp;
+		failed = false;
+	}
+	
+	/**
+	 * Records the planned operations and forces them to disk.
+	 * @param syncs the branches to synchronize, with the id of their source.
+	 */
+	synchronized void plan(final Collection<BranchId> creations, final Collection<BranchId> deletions, 
+			final Map<BranchId,String> syncs){
+		try{
+			if(!open()) return;
+			for(final BranchId branch: creations) writePlan(Operation.CREATE, branch, "");
+			for(final BranchId branch: deletions) writePlan(Operation.DELETE, branch, "");
+			for(final Map.Entry<BranchId,String> sync: syncs.entrySet()) writePlan(Operation.SYNC, sync.getKey(), sync.getValue());
+			force();
+		} catch(final IOException e){
+			fail(e);
+		}
+	}
+	
+	/**
+	 * Records a single planned operation, e.g. of a branch created while fetching, and forces 
+	 * it to disk.
+	 */
+	synchronized void plan(final Operation operation, final BranchId branch, final String sourceId){
+		try{
+			if(!open()) return;
+			writePlan(operation, branch, sourceId);
+			force();
+		} catch(final IOException e){
+			fail(e);
+		}
+	}
+
+	/**
+	 * @return false if the journal could not be written in this run.
+	 */
+	private boolean open() throws IOException {
+		if(writer!=null) return true;
+		if(failed || templateStamp==null) return false;
+		out = new FileOutputStream(journalFile.toFile(), false);
+		writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		writer.write(RUN+SEPARATOR+templateStamp+"\n");
+		return true;
+	}
+	
+	private void force() throws IOException {
+		writer.flush();
+		out.getFD().sync();
+	}
+
+	private void fail(final IOException e) {
+		LOG.warn(format("Could not write sync journal {}.", journalFile), e);
+		close();
+		failed = true;
+	}
+
+	private void writePlan(final Operation operation, final BranchId branch, final String sourceId) throws IOException {
+		writer.write(PLAN+SEPARATOR+operation+SEPARATOR+branch.toProjectName()+SEPARATOR+sourceId+"\n");
+	}
+
+	/**
+	 * Records a finished operation. The record is handed to the operating system, but not forced 
+	 * to disk, so it survives a crash of Jenkins, but maybe not a power failure (in which case the 
+	 * operation is repeated).
+	 */
+	synchronized void done(final Operation operation, final BranchId branch){
+		if(writer!=null){
+			try{
+				writer.write(DONE+SEPARATOR+operation+SEPARATOR+branch.toProjectName()+"\n");
+				writer.flush();
+			} catch(final IOException e){
+				fail(e);
+			}
+		}
+	}
+	
+	/**
+	 * Ends the journal. If the run is complete, the journal is deleted; otherwise it is kept, 
+	 * so that the unfinished operations are known after a restart.
+	 */
+	synchronized void end(final boolean complete){
+		close();
+		templateStamp = null;
+		if(complete){
+			try {
+				Files.deleteIfExists(journalFile);
+			} catch (final IOException e) {
+				LOG.warn(format("Could not delete sync journal {}.", journalFile), e);
+			}
+		}
+	}
+
+	private void close() {
+		assert Thread.holdsLock(this);
+		if(writer!=null){
+			try {
+				writer.close();
+			} catch (final IOException e) {
+				LOG.warn(format("Could not close sync journal {}.", journalFile), e);
+			}
+		}
+		writer = null;
+		out = null;
+	}
+
+	/**
+	 * The state of an interrupted run.
+	 */
+	static final class Recovery{
+		static final Recovery NONE = new Recovery(null, ImmutableSortedSet.<BranchId>of(), ImmutableMap.<BranchId,String>of());
+		
+		private final String templateStamp;
+		private final ImmutableSortedSet<BranchId> unfinished;
+		private final ImmutableMap<BranchId,String> synced;
+		
+		private Recovery(final String templateStamp, final ImmutableSortedSet<BranchId> unfinished, 
+				final ImmutableMap<BranchId,String> synced) {
+			this.templateStamp = templateStamp;
+			this.unfinished = unfinished;
+			this.synced = synced;
+		}
+		
+		/**
+		 * @return the branches with planned, but unfinished operations.
+		 */
+		ImmutableSortedSet<BranchId> unfinished(){
+			return unfinished;
+		}
+		
+		/**
+		 * @return true if the branch has been synchronized by the interrupted run with the same 
+		 * template configuration and source.
+		 */
+		boolean isSynced(final BranchId branch, final String templateStamp, final String sourceId){
+			return templateStamp.equals(this.templateStamp) && Objects.equal(synced.get(branch), sourceId);
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.impl;
+
+import static com.google.common.collect.ImmutableSortedSet.copyOf;
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+
+import java.util.Map;
+
+import org.zalando.jenkins.multibranch.BranchId;
+import org.zalando.jenkins.multibranch.impl.SyncJournal.Recovery;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Sets;
+
+/**
+ * The changes a synchronization run has to apply, computed from immutable snapshots of the SCM 
+ * heads and of the repository. Computing the plan has no side effects and does not touch the 
+ * repository, so the state cannot change between the individual decisions.
+ */
+final class SyncPlan {
+	
+	private final ImmutableSortedSet<BranchId> existing;
+	private final ImmutableSortedSet<BranchId> creations;
+	private final ImmutableSortedSet<BranchId> deletions;
+	private final ImmutableSortedMap<BranchId,String> syncs;
+	private final ImmutableSortedSet<BranchId> alreadySynced;
+	private final boolean deletionsSuppressed;
+	
+	private SyncPlan(final ImmutableSortedSet<BranchId> existing, final ImmutableSortedSet<BranchId> creations, 
+			final ImmutableSortedSet<BranchId> deletions, final ImmutableSortedMap<BranchId,String> syncs, 
+			final ImmutableSortedSet<BranchId> alreadySynced, final boolean deletionsSuppressed) {
+		this.existing = existing;
+		this.creations = creations;
+		this.deletions = deletions;
+		this.syncs = syncs;
+		this.alreadySynced = alreadySynced;
+		this.deletionsSuppressed = deletionsSuppressed;
+	}
+
+	/**
+	 * @param sourceIds the selected branches with the id of the source they were fetched from.
+	 * @param existing the branches which have a sub-project.
+	 * @param fetchComplete false if not all sources could be fetched. In this case nothing is 
+	 * deleted, because the branches of the failed source would be deleted otherwise.
+	 * @param recovered the state of a run interrupted by a restart. Branches synchronized by it 
+	 * with the same template and source are not synchronized again.
+	 * @param templateStamp the current {@link TemplateConfigCache#fileStamp()}.
+	 */
+	static SyncPlan compute(final ImmutableSortedMap<BranchId,String> sourceIds, 
+			final ImmutableSortedSet<BranchId> existing, final boolean fetchComplete, 
+			final Recovery recovered, final String templateStamp){
+		final ImmutableSortedSet<BranchId> selected = sourceIds.keySet();
+		final ImmutableSortedSet<BranchId> creations = copyOf(Sets.difference(selected, existing));
+		final ImmutableSortedSet<BranchId> deletions = fetchComplete ? 
+				copyOf(Sets.difference(existing, selected)) : ImmutableSortedSet.<BranchId>of();
+		final ImmutableSortedMap.Builder<BranchId,String> syncs = ImmutableSortedMap.naturalOrder();
+		final ImmutableSortedSet.Builder<BranchId> alreadySynced = ImmutableSortedSet.naturalOrder();
+		for(final Map.Entry<BranchId,String> e: sourceIds.entrySet()){
+			if(recovered.isSynced(e.getKey(), templateStamp, e.getValue())) alreadySynced.add(e.getKey());
+			else syncs.put(e);
+		}
+		return new SyncPlan(existing, creations, deletions, syncs.build(), alreadySynced.build(), !fetchComplete);
+	}
+	
+	/**
+	 * @return the branches which had a sub-project when the plan was computed.
+	 */
+	ImmutableSortedSet<BranchId> existing(){
+		return existing;
+	}
+
+	ImmutableSortedSet<BranchId> creations(){
+		return creations;
+	}
+
+	ImmutableSortedSet<BranchId> deletions(){
+		return deletions;
+	}
+	
+	/**
+	 * @return the branches to synchronize with the id of their source.
+	 */
+	ImmutableSortedMap<BranchId,String> syncs(){
+		return syncs;
+	}
+
+	/**
+	 * @return the branches synchronized before a restart, which are not synchronized again.
+	 */
+	ImmutableSortedSet<BranchId> alreadySynced(){
+		return alreadySynced;
+	}
+
+	/**
+	 * @return true if deletions were suppressed, because not all sources could be fetched.
+	 */
+	boolean deletionsSuppressed(){
+		return deletionsSuppressed;
+	}
+
+	@Override
+	public String toString() {
+		return format("{} existing, {} to create, {} to delete{}, {} to synchronize, {} already synchronized", 
+				existing.size(), creations.size(), deletions.size(), deletionsSuppressed ? " (suppressed)" : "", 
+				syncs.size(), alreadySynced.size());
+	}
+
+}
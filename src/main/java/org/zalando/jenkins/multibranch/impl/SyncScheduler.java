@@ -0,0 +1,188 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.impl;
+
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zalando.jenkins.multibranch.BranchesSynchronizer.SyncPriority;
+import org.zalando.jenkins.multibranch.util.Duration;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs the branch synchronizations of all multi-branch projects of this Jenkins instance on a 
+ * dedicated, bounded thread pool (instead of the shared {@link jenkins.util.Timer}).
+ * <ul>
+ * <li>At most {@link #MAX_CONCURRENT_SYNCS} synchronizations run at the same time.</li>
+ * <li>Each project has at most one waiting synchronization; further requests are merged into it. 
+ * Waiting synchronizations start in the order of their request, so a project with a short cron 
+ * spec cannot starve the others.</li>
+ * <li>Synchronizations with {@link SyncPriority#HIGH} (e.g. requested by a user) start before 
+ * those with {@link SyncPriority#NORMAL}.</li>
+ * <li>A project is never synchronized by two threads at the same time.</li>
+ * </ul>
+ */
+final class SyncScheduler {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(SyncScheduler.class);
+	
+	private static final int MAX_CONCURRENT_SYNCS = Math.max(1, 
+			Integer.getInteger(SyncScheduler.class.getName()+".maxConcurrentSyncs", 2).intValue());
+	
+	private static final SyncScheduler INSTANCE = new SyncScheduler();
+	
+	static SyncScheduler get(){
+		return INSTANCE;
+	}
+	
+	private final ThreadPoolExecutor executor;
+	private final AtomicLong sequence = new AtomicLong();
+	
+	//Guarded by this:
+	private final Map<Object,SyncTask> waiting = new HashMap<>();
+	private final Set<Object> running = new HashSet<>();
+	private long started;
+	private long merged;
+	private long totalWaitMillis;
+	private long maxWaitMillis;
+	
+	private SyncScheduler() {
+		executor = new ThreadPoolExecutor(
+				MAX_CONCURRENT_SYNCS, MAX_CONCURRENT_SYNCS, 
+				1L, TimeUnit.MINUTES, 
+				new PriorityBlockingQueue<Runnable>(), 
+				new ThreadFactoryBuilder()
+					.setNameFormat(SyncScheduler.class.getSimpleName()+"-%d")
+					.setDaemon(true)
+					.build());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Schedules the synchronization of a project. If a synchronization of the same project is 
+	 * already waiting, no new one is scheduled, but the priority of the waiting one is raised if 
+	 * necessary.
+	 * 
+	 * @param project identifies the project.
+	 * @return the future of the (possibly already waiting) synchronization.
+	 */
+	synchronized Future<Void> submit(final Object project, final String name, final SyncPriority priority, 
+			final Callable<Void> sync){
+		final SyncTask existing = waiting.get(project);
+		if(existing!=null){
+			merged++;
+			if(priority.compareTo(existing.priority)<0){
+				//Re-insert, so that the queue order reflects the new priority:
+				final boolean queued = executor.remove(existing);
+				existing.priority = priority;
+				if(queued) executor.execute(existing);
+			}
+			LOG.debug("Merged sync request for {} into waiting sync ({}).", name, existing.priority);
+			return existing;
+		}else{
+			final SyncTask task = new SyncTask(project, name, priority, sync);
+			waiting.put(project, task);
+			//Otherwise it is started as soon as the running sync of the project has finished:
+			if(!running.contains(project)) executor.execute(task);
+			LOG.debug("Scheduled sync of {} ({}). {}", name, priority, getStatisticsInternal());
+			return task;
+		}
+	}
+	
+	/**
+	 * @return the queue depth and timing metrics.
+	 */
+	synchronized String getStatistics(){
+		return getStatisticsInternal();
+	}
+
+	private String getStatisticsInternal() {
+		assert Thread.holdsLock(this);
+		return format("{} running, {} waiting, {} started, {} merged, average wait {}, max wait {}", 
+				running.size(), waiting.size(), started, merged, 
+				Duration.ofMllis(started==0 ? 0L : totalWaitMillis/started), Duration.ofMllis(maxWaitMillis));
+	}
+
+	private synchronized void beforeRun(final SyncTask task){
+		waiting.remove(task.project);
+		running.add(task.project);
+		final long waitMillis = System.currentTimeMillis()-task.created;
+		started++;
+		totalWaitMillis += waitMillis;
+		maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+		LOG.debug("Starting sync of {} after waiting {}.", task.name, Duration.ofMllis(waitMillis));
+	}
+	
+	private synchronized void afterRun(final SyncTask task){
+		running.remove(task.project);
+		final SyncTask next = waiting.get(task.project);
+		if(next!=null) executor.execute(next);
+	}
+
+	private final class SyncTask extends FutureTask<Void> implements Comparable<SyncTask>{
+		private final Object project;
+		private final String name;
+		private final long order = sequence.incrementAndGet();
+		private final long created = System.currentTimeMillis();
+		private volatile SyncPriority priority;
+		
+		private SyncTask(final Object project, final String name, final SyncPriority priority, final Callable<Void> sync) {
+			super(sync);
+			this.project = project;
+			this.name = name;
+			this.priority = priority;
+		}
+
+		@Override
+		public void run() {
+			beforeRun(this);
+			try{
+				super.run();
+			} finally{
+				afterRun(this);
+			}
+		}
+
+		@Override
+		public int compareTo(final SyncTask o) {
+			final int c = priority.compareTo(o.priority);
+			return c!=0 ? c : Long.compare(order, o.order);
+		}
+	}
+
+}
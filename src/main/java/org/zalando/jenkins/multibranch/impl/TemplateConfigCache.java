@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.impl;
+
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+import hudson.model.Items;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import com.thoughtworks.xstream.XStreamException;
+import com.thoughtworks.xstream.io.xml.DomReader;
+
+/**
+ * Keeps the parsed configuration of the template project in memory, so that applying it 
+ * to many sub-projects costs only one XML parse. The cache is invalidated explicitly
+ * when the template is saved and implicitly if the file changes on disk.
+ */
+final class TemplateConfigCache {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(TemplateConfigCache.class);
+	
+	private final Path configFile;
+	
+	private Document document;
+	private long lastModified;
+	private long size;
+	private long generation;
+
+	TemplateConfigCache(final Path configFile) {
+		this.configFile = configFile.toAbsolutePath().normalize();
+	}
+	
+	synchronized void invalidate(){
+		if(document!=null) LOG.debug("Invalidated cached template configuration {}.", configFile);
+		document = null;
+		generation++;
+	}
+
+	/**
+	 * @return a value that changes whenever the template configuration changes.
+	 */
+	synchronized String stamp() throws IOException{
+		return format("{}:{}", generation, fileStamp());
+	}
+
+	/**
+	 * @return a value that changes whenever the template configuration file changes. Unlike 
+	 * {@link #stamp()}, it is stable across restarts.
+	 */
+	String fileStamp() throws IOException{
+		return format("{}:{}", Files.getLastModifiedTime(configFile).toMillis(), Files.size(configFile));
+	}
+
+	/**
+	 * Same as {@link hudson.XmlFile#unmarshal(Object)} on the template configuration file, 
+	 * but without reading and parsing the file again.
+	 */
+	synchronized void unmarshal(final Object target) throws IOException{
+		final Document doc = getDocument();
+		try{
+			Items.XSTREAM.unmarshal(new DomReader(doc), target);
+		} catch(final XStreamException | Error e){
+			throw new IOException(format("Unable to apply template configuration {} to {}.", configFile, target), e);
+		}
+	}
+
+	private Document getDocument() throws IOException {
+		final long modified = Files.getLastModifiedTime(configFile).toMillis();
+		final long currentSize = Files.size(configFile);
+		if(document==null || modified!=lastModified || currentSize!=size){
+			document = parse();
+			lastModified = modified;
+			size = currentSize;
+			LOG.debug("Parsed template configuration {}.", configFile);
+		}
+		return document;
+	}
+
+	private Document parse() throws IOException {
+		try(InputStream in = Files.newInputStream(configFile)){
+			return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+		} catch (final ParserConfigurationException | SAXException e) {
+			throw new IOException(format("Could not parse {}.", configFile), e);
+		}
+	}
+
+}
@@ -0,0 +1,315 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.util;
+
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps removed directories as compressed files, so that they can be restored later. Like 
+ * with the {@link TrashBin}, the caller does not wait: A directory is atomically renamed into 
+ * a staging area and then packed by a single low-priority background thread. Archives older 
+ * than {@link #RETENTION} are removed, and at most {@link #MAX_ARCHIVES} are kept (the 
+ * oldest are removed first).
+ */
+public final class BranchArchive {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(BranchArchive.class);
+	
+	private static final int MAX_ARCHIVES = 
+			Integer.getInteger(BranchArchive.class.getName()+".maxArchives", 1000);
+	
+	private static final Duration RETENTION = Duration.of(
+			Long.getLong(BranchArchive.class.getName()+".retentionDays", 90L).longValue(), TimeUnit.DAYS);
+	
+	private static final String SUFFIX = ".zip";
+	
+	private static final ExecutorService ARCHIVER = Executors.newSingleThreadExecutor(
+			new ThreadFactoryBuilder()
+				.setNameFormat(BranchArchive.class.getSimpleName()+"-archiver-%d")
+				.setDaemon(true)
+				.setPriority(Thread.MIN_PRIORITY)
+				.build());
+	
+	private final Path archiveDirectory;
+	private final Path stagingDirectory;
+	private final Path restoringDirectory;
+	private final TrashBin trashBin;
+	//Directories waiting to be packed, by name:
+	private final ConcurrentMap<String,Staged> staged = new ConcurrentHashMap<>();
+
+	public BranchArchive(final Path archiveDirectory, final TrashBin trashBin) {
+		this.archiveDirectory = archiveDirectory.toAbsolutePath().normalize();
+		stagingDirectory = this.archiveDirectory.resolve("staging");
+		restoringDirectory = this.archiveDirectory.resolve("restoring");
+		this.trashBin = trashBin;
+	}
+	
+	/**
+	 * Moves the directory into the staging area and schedules packing it. The directory does 
+	 * not exist any more at its original location when this method returns normally.
+	 */
+	public void archive(final Path directory) throws IOException{
+		Files.createDirectories(stagingDirectory);
+		final String name = directory.getFileName().toString();
+		final Path target = stagingDirectory.resolve(format("{}.{}", name, System.currentTimeMillis()));
+		Files.move(directory, target, StandardCopyOption.ATOMIC_MOVE);
+		LOG.debug("Moved {} to {}.", directory, target);
+		schedulePack(name, target);
+	}
+	
+	/**
+	 * Prepares restoring the latest archived directory with the given name: Waits until a 
+	 * pending packing is finished and unpacks the archive into a temporary directory. This may take 
+	 * a while, so callers should not hold locks. The restored directory is moved to its final 
+	 * location by {@link Restoration#complete(Path)}.
+	 * @return null if there is no archive for the name.
+	 */
+	public @Nullable Restoration prepareRestore(final String name) throws IOException, InterruptedException{
+		final Staged entry = staged.get(name);
+		if(entry!=null){
+			if(entry.claim()){
+				//Not packed yet, simply use the staged directory:
+				staged.remove(name, entry);
+				entry.done.countDown();
+				return new Restoration(name, entry.directory, null);
+			}
+			else entry.done.await();
+		}
+		final Path archive = archiveDirectory.resolve(name+SUFFIX);
+		if(!Files.exists(archive)) return null;
+		final Date start = new Date();
+		Files.createDirectories(restoringDirectory);
+		final Path tmpDir = Files.createTempDirectory(restoringDirectory, name+".");
+		boolean success = false;
+		try{
+			unpack(archive, tmpDir);
+			success = true;
+		} finally{
+			if(!success) trashBin.moveToTrash(tmpDir);
+		}
+		LOG.debug("Unpacked {} to {} (took {}).", archive, tmpDir, Duration.since(start));
+		return new Restoration(name, tmpDir, archive);
+	}
+	
+	/**
+	 * A directory unpacked (or taken back from staging) by {@link BranchArchive#prepareRestore(String)}.
+	 * Exactly one of {@link #complete(Path)} or {@link #discard()} must be called.
+	 */
+	public final class Restoration{
+		private final String name;
+		private final Path directory;
+		//Null if the directory was not packed yet:
+		@Nullable private final Path archive;
+		private boolean completed;
+		
+		private Restoration(final String name, final Path directory, @Nullable final Path archive) {
+			this.name = name;
+			this.directory = directory;
+			this.archive = archive;
+		}
+
+		/**
+		 * Atomically moves the restored directory to the target and removes the archive.
+		 * @param target the directory to restore to. It must not exist.
+		 */
+		public synchronized void complete(final Path target) throws IOException{
+			if(completed) throw new IllegalStateException(format("{} has been restored already.", name));
+			Files.move(directory, target, StandardCopyOption.ATOMIC_MOVE);
+			completed = true;
+			if(archive!=null) Files.deleteIfExists(archive);
+			LOG.info("Restored {} from {}.", target, archive==null ? directory : archive);
+		}
+
+		/**
+		 * Gives up the restoration, unless it has been completed. A directory taken back from 
+		 * staging is scheduled for packing again, an unpacked directory is removed.
+		 */
+		public synchronized void discard(){
+			if(completed) return;
+			completed = true;
+			if(archive==null) schedulePack(name, directory);
+			else{
+				try {
+					trashBin.moveToTrash(directory);
+				} catch (final IOException e) {
+					LOG.warn(format("Could not remove {}.", directory), e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Schedules packing everything left in the staging area (e.g. by an interrupted earlier run), 
+	 * and removes directories left over by interrupted restorations.
+	 */
+	public void packLeftovers(){
+		if(Files.isDirectory(restoringDirectory)){
+			try {
+				trashBin.moveToTrash(restoringDirectory);
+			} catch (final IOException e) {
+				LOG.warn(format("Could not remove {}.", restoringDirectory), e);
+			}
+		}
+		if(Files.isDirectory(stagingDirectory)){
+			try(DirectoryStream<Path> entries = Files.newDirectoryStream(stagingDirectory)){
+				for(final Path entry: entries){
+					final String fileName = entry.getFileName().toString();
+					final int dot = fileName.lastIndexOf('.');
+					if(dot>0){
+						LOG.info("Found leftover {} in staging area. Scheduling archival.", entry);
+						schedulePack(fileName.substring(0, dot), entry);
+					}
+				}
+			} catch (final IOException e) {
+				LOG.warn(format("Could not list staging directory {}.", stagingDirectory), e);
+			}
+		}
+	}
+
+	private void schedulePack(final String name, final Path directory) {
+		final Staged entry = new Staged(directory);
+		staged.put(name, entry);
+		ARCHIVER.submit(new Runnable(){
+			@Override
+			public void run() {
+				if(!entry.claim()) return; //Restored meanwhile.
+				try{
+					pack(name, directory);
+					trashBin.moveToTrash(directory);
+					enforceRetention();
+				} catch(final Throwable t){
+					LOG.error(format("Could not archive {}. It stays in the staging area.", directory), t);
+				} finally{
+					staged.remove(name, entry);
+					entry.done.countDown();
+				}
+			}});
+	}
+	
+	private void pack(final String name, final Path directory) throws IOException {
+		final Date start = new Date();
+		final Path archive = archiveDirectory.resolve(name+SUFFIX);
+		final Path tmpFile = archiveDirectory.resolve(name+SUFFIX+".tmp");
+		try(final ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(tmpFile))){
+			Files.walkFileTree(directory, new SimpleFileVisitor<Path>(){
+				@Override
+				public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+					//Symbolic links (e.g. build permalinks) are recreated by Jenkins.
+					if(attrs.isRegularFile()){
+						out.putNextEntry(new ZipEntry(directory.relativize(file).toString().replace('\\', '/')));
+						Files.copy(file, out);
+						out.closeEntry();
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		Files.move(tmpFile, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		LOG.info("Archived {} to {} ({} KiB, took {}).", directory, archive, Files.size(archive)/1024, Duration.since(start));
+	}
+
+	private static void unpack(final Path archive, final Path target) throws IOException {
+		Files.createDirectories(target);
+		try(final ZipInputStream in = new ZipInputStream(Files.newInputStream(archive))){
+			ZipEntry entry;
+			while((entry = in.getNextEntry())!=null){
+				final Path file = target.resolve(entry.getName()).normalize();
+				if(!file.startsWith(target)) throw new IOException(format("Invalid entry {} in {}.", entry.getName(), archive));
+				if(entry.isDirectory()) Files.createDirectories(file);
+				else{
+					Files.createDirectories(file.getParent());
+					Files.copy(in, file);
+				}
+			}
+		}
+	}
+
+	private void enforceRetention() throws IOException {
+		final List<Path> archives = new ArrayList<>();
+		try(DirectoryStream<Path> entries = Files.newDirectoryStream(archiveDirectory, "*"+SUFFIX)){
+			for(final Path entry: entries) archives.add(entry);
+		}
+		//Newest first:
+		Collections.sort(archives, new Comparator<Path>(){
+			@Override
+			public int compare(final Path p1, final Path p2) {
+				return Long.compare(p2.toFile().lastModified(), p1.toFile().lastModified());
+			}});
+		final long oldest = System.currentTimeMillis() - RETENTION.toMillis();
+		for(int i=0; i<archives.size(); i++){
+			final Path archive = archives.get(i);
+			if(i>=MAX_ARCHIVES || archive.toFile().lastModified()<oldest){
+				Files.deleteIfExists(archive);
+				LOG.info("Removed archive {} (retention: {} archives, {}).", archive, MAX_ARCHIVES, RETENTION);
+			}
+		}
+	}
+	
+	private static final class Staged{
+		private final Path directory;
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private Staged(final Path directory) {
+			this.directory = directory;
+		}
+		/**
+		 * @return true for the first caller only, i.e. either the archiver or a restore.
+		 */
+		private boolean claim(){
+			return claimed.compareAndSet(false, true);
+		}
+	}
+
+}
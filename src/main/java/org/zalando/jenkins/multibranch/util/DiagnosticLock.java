@@ -29,6 +29,7 @@ import java.util.Date;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -45,6 +46,10 @@ public final class DiagnosticLock implements Lock{
 	private final Duration lockTimeout;
 	private final ReentrantLock lock = new ReentrantLock();
 	private TimerTask warnTask;
+	
+	private final AtomicLong acquisitions = new AtomicLong();
+	private final AtomicLong contended = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
 
 	public DiagnosticLock(final String name, final Duration lockTimeout) {
 		this.name = name;
@@ -55,8 +60,16 @@ public final class DiagnosticLock implements Lock{
 	@Override
 	public void lock() {
 		try {
-			final boolean aquired = lock.tryLock(lockTimeout.toMillis(), TimeUnit.MILLISECONDS);
-			if(!aquired) throw new IllegalStateException(format("{} is still locked after waiting {}.", this, lockTimeout));
+			boolean aquired = lock.tryLock();
+			if(!aquired){
+				contended.incrementAndGet();
+				aquired = lock.tryLock(lockTimeout.toMillis(), TimeUnit.MILLISECONDS);
+			}
+			if(!aquired){
+				timeouts.incrementAndGet();
+				throw new IllegalStateException(format("{} is still locked after waiting {} ({}).", this, lockTimeout, getStatistics()));
+			}
+			acquisitions.incrementAndGet();
 			assert lock.isHeldByCurrentThread();
 			boolean success = false;
 			try{
@@ -119,6 +132,26 @@ public final class DiagnosticLock implements Lock{
 		return name;
 	}
 	
+	/**
+	 * @return the number of lock attempts, of attempts that had to wait and of attempts that timed out.
+	 */
+	public String getStatistics() {
+		return format("{} acquisitions, {} contended, {} timeouts", acquisitions.get(), contended.get(), timeouts.get());
+	}
+	
+	/**
+	 * @return the statistics of the given locks summed up, e.g. of the stripes of a striped lock.
+	 */
+	public static String getStatistics(final Iterable<DiagnosticLock> locks) {
+		long acquisitions = 0, contended = 0, timeouts = 0;
+		for(final DiagnosticLock lock: locks){
+			acquisitions += lock.acquisitions.get();
+			contended += lock.contended.get();
+			timeouts += lock.timeouts.get();
+		}
+		return format("{} acquisitions, {} contended, {} timeouts", acquisitions, contended, timeouts);
+	}
+	
 	public void checkLocked() {
 		assert lock.isHeldByCurrentThread();
 	}
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.util;
+
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+import hudson.model.AbstractProject;
+import hudson.model.Job;
+import hudson.model.JobProperty;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to project internals which Jenkins does not expose. Failures are logged and reported 
+ * to the caller, so that it can fall back to the public API.
+ */
+public final class ProjectUtils {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(ProjectUtils.class);
+
+	/**
+	 * Static utility class.
+	 */
+	private ProjectUtils() { }
+
+	/**
+	 * Sets the owner of a job property, like the protected {@link JobProperty#setOwner(Job)}, 
+	 * but without the side effects of overriding implementations.
+	 * @return false if the owner could not be set.
+	 */
+	public static boolean setOwner(final JobProperty<?> property, final Job<?,?> owner) {
+		try {
+			final Field f = JobProperty.class.getDeclaredField("owner");
+			f.setAccessible(true);
+			f.set(property, owner);
+			return true;
+		} catch (final Exception e) {
+			LOG.warn("Unable to set job property owner", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Calls the protected {@link AbstractProject#updateTransientActions()}, which recomputes the 
+	 * actions contributed by {@link hudson.model.TransientProjectActionFactory}s. (Actions of 
+	 * {@link jenkins.model.TransientActionFactory}s are computed on each call of 
+	 * {@link hudson.model.Actionable#getAllActions()} and need no update.)
+	 * @return false if the actions could not be updated.
+	 */
+	public static boolean updateTransientActions(final AbstractProject<?,?> project) {
+		try {
+			final Method m = AbstractProject.class.getDeclaredMethod("updateTransientActions");
+			m.setAccessible(true);
+			m.invoke(project);
+			return true;
+		} catch (final Exception e) {
+			LOG.warn(format("Unable to update transient actions of {}", project.getFullName()), e);
+			return false;
+		}
+	}
+
+}
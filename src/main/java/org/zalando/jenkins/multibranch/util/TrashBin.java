@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.util;
+
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Removes directories without letting the caller wait for the (possibly very long) 
+ * recursive deletion: A directory is atomically renamed into the trash directory and 
+ * then purged by a single low-priority background thread. The number of file system 
+ * deletions per second is limited to keep the I/O load low.
+ */
+public final class TrashBin {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(TrashBin.class);
+	
+	private static final int MAX_DELETIONS_PER_SECOND = 
+			Integer.getInteger(TrashBin.class.getName()+".maxDeletionsPerSecond", 500);
+	
+	private static final ExecutorService PURGER = Executors.newSingleThreadExecutor(
+			new ThreadFactoryBuilder()
+				.setNameFormat(TrashBin.class.getSimpleName()+"-purger-%d")
+				.setDaemon(true)
+				.setPriority(Thread.MIN_PRIORITY)
+				.build());
+	
+	private static final AtomicLong COUNTER = new AtomicLong();
+	
+	private final Path trashDirectory;
+
+	public TrashBin(final Path trashDirectory) {
+		this.trashDirectory = trashDirectory.toAbsolutePath().normalize();
+	}
+	
+	/**
+	 * Moves the directory into the trash and schedules its deletion.
+	 * The directory does not exist any more at its original location when this 
+	 * method returns normally.
+	 */
+	public void moveToTrash(final Path directory) throws IOException{
+		Files.createDirectories(trashDirectory);
+		final Path target = trashDirectory.resolve(
+				format("{}.{}.{}", directory.getFileName(), System.currentTimeMillis(), COUNTER.incrementAndGet()));
+		Files.move(directory, target, StandardCopyOption.ATOMIC_MOVE);
+		LOG.debug("Moved {} to {}.", directory, target);
+		schedulePurge(target);
+	}
+	
+	/**
+	 * Schedules the deletion of everything left in the trash (e.g. by an interrupted earlier run).
+	 */
+	public void purgeLeftovers(){
+		if(Files.isDirectory(trashDirectory)){
+			try(DirectoryStream<Path> entries = Files.newDirectoryStream(trashDirectory)){
+				for(final Path entry: entries){
+					LOG.info("Found leftover {} in trash. Scheduling deletion.", entry);
+					schedulePurge(entry);
+				}
+			} catch (final IOException e) {
+				LOG.warn(format("Could not list trash directory {}.", trashDirectory), e);
+			}
+		}
+	}
+
+	private void schedulePurge(final Path entry) {
+		PURGER.submit(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					purge(entry);
+				} catch(final Throwable t){
+					LOG.error(format("Could not purge {}.", entry), t);
+				}
+			}});
+	}
+	
+	private static void purge(final Path entry) throws IOException {
+		final Date start = new Date();
+		final Throttle throttle = new Throttle(MAX_DELETIONS_PER_SECOND);
+		Files.walkFileTree(entry, new SimpleFileVisitor<Path>(){
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+				delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+			@Override
+			public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+				LOG.warn(format("Could not visit {}.", file), exc);
+				return FileVisitResult.CONTINUE;
+			}
+			@Override
+			public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
+				delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+			private void delete(final Path path) throws IOException{
+				try{
+					Files.deleteIfExists(path);
+				} catch(final IOException e){
+					LOG.warn(format("Could not delete {}.", path), e);
+				}
+				try {
+					throttle.tick();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(format("Purging {} has been interrupted.", entry));
+				}
+			}
+		});
+		LOG.info("Purged {} from trash ({} deletions, took {}).", entry, throttle.count(), Duration.since(start));
+	}
+	
+	private static final class Throttle{
+		private final int maxPerSecond;
+		private long windowStart = System.currentTimeMillis();
+		private int inWindow;
+		private long count;
+		private Throttle(final int maxPerSecond) {
+			this.maxPerSecond = maxPerSecond;
+		}
+		private void tick() throws InterruptedException{
+			count++;
+			if(maxPerSecond>0 && ++inWindow>=maxPerSecond){
+				final long remaining = windowStart + TimeUnit.SECONDS.toMillis(1) - System.currentTimeMillis();
+				if(remaining>0) Thread.sleep(remaining);
+				windowStart = System.currentTimeMillis();
+				inWindow = 0;
+			}
+		}
+		private long count(){
+			return count;
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+import hudson.model.FreeStyleProject;
+import hudson.model.Items;
+
+import java.io.File;
+import java.util.Date;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the retained heap of the sub-projects of a multi-branch project loaded from a 
+ * {@link SyntheticJenkinsHome}: per branch (sub-project, delegate project, interned branch id, 
+ * last change date) and per loaded build record. The test fails if a budget is exceeded, so 
+ * changes that grow the footprint are noticed. The numbers are used to size controller heaps.
+ */
+public class HeapFootprintTest {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(HeapFootprintTest.class);
+	
+	private static final String PREFIX = HeapFootprintTest.class.getName();
+	
+	private static final int BRANCHES = Integer.getInteger(PREFIX+".branches", 200).intValue();
+	private static final int BUILDS = Integer.getInteger(PREFIX+".builds", 5).intValue();
+	private static final long BRANCH_BUDGET = Long.getLong(PREFIX+".branchBudgetKiB", 512L).longValue() * 1024;
+	private static final long BUILD_BUDGET = Long.getLong(PREFIX+".buildBudgetKiB", 32L).longValue() * 1024;
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Test(timeout=1800000)
+	public void retainedSizePerBranchAndBuildIsWithinBudget() throws Exception {
+		final FreeStyleMultiBranchProject prototype = j.jenkins.createProject(FreeStyleMultiBranchProject.class, "prototype");
+		prototype.setSCMSource(new SyntheticSCMSource("synthetic"));
+		final File dir = SyntheticJenkinsHome.write(prototype, "footprint", BRANCHES, BUILDS);
+		
+		final long heapBefore = HeapMeter.usedHeap();
+		final FreeStyleMultiBranchProject project = (FreeStyleMultiBranchProject) Items.load(j.jenkins, dir);
+		j.jenkins.putItem(project);
+		final SubProjectRepository<FreeStyleProject> repository = project.getSubProjectRepository();
+		final Date now = new Date();
+		for(final BranchId branch: repository.getBranches()) repository.registerLastChange(branch, now);
+		assertEquals(BRANCHES, project.getItems().size());
+		final long heapWithBranches = HeapMeter.usedHeap();
+		
+		long builds = 0;
+		for(final FreeStyleProject branch: project.getItems()) builds += branch.getBuilds().size();
+		assertEquals((long) BRANCHES*BUILDS, builds);
+		final long heapWithBuilds = HeapMeter.usedHeap();
+		
+		final long perBranch = (heapWithBranches-heapBefore)/BRANCHES;
+		final long perBuild = (heapWithBuilds-heapWithBranches)/builds;
+		LOG.info(format("Retained heap: {} KiB per branch ({} branches), {} KiB per build record ({} builds).", 
+				perBranch/1024, BRANCHES, perBuild/1024, builds));
+		assertTrue(format("{} KiB per branch exceed the budget of {} KiB.", perBranch/1024, BRANCH_BUDGET/1024), 
+				perBranch<=BRANCH_BUDGET);
+		assertTrue(format("{} KiB per build record exceed the budget of {} KiB.", perBuild/1024, BUILD_BUDGET/1024), 
+				perBuild<=BUILD_BUDGET);
+		//Keeps the project reachable until it has been measured:
+		assertEquals(BRANCHES, project.getItems().size());
+	}
+
+}
@@ -0,0 +1,256 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import hudson.model.FreeStyleProject;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zalando.jenkins.multibranch.SubProjectFactory.ProjectAlreadyExixtsException;
+import org.zalando.jenkins.multibranch.SubProjectRepository.ProjectDoesNotExixtException;
+import org.zalando.jenkins.multibranch.SyntheticSCMSource.Head;
+
+/**
+ * Creates, deletes (directly and via onDeleted), synchronizes and reads sub-projects and registers 
+ * last changes from many threads at once and checks that the repository stays consistent: No 
+ * project is lost or duplicated, every registered project has a complete directory and every 
+ * directory belongs to a registered project. Deadlocks make the test time out; the lock 
+ * statistics report contention and lock timeouts.
+ */
+public class SubProjectRepositoryStressTest {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(SubProjectRepositoryStressTest.class);
+	
+	private static final int BRANCHES = 40;
+	private static final int WRITERS = 4;
+	private static final int READERS = 4;
+	private static final int SYNCS = 10;
+	private static final int OPERATIONS = 150;
+	
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+	
+	private FreeStyleMultiBranchProject project;
+	private SubProjectRepository<FreeStyleProject> repository;
+	private SyntheticSCMSource source;
+	private final List<BranchId> branches = new ArrayList<>();
+	private final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+	
+	@Before
+	public void setUp() throws Exception {
+		project = j.jenkins.createProject(FreeStyleMultiBranchProject.class, "stress");
+		source = new SyntheticSCMSource("synthetic");
+		project.setSCMSource(source);
+		repository = project.getSubProjectRepository();
+		for(int i=0; i<BRANCHES; i++) branches.add(project.getBranchNameMapper().fromProjectName("f-b"+i));
+	}
+
+	@Test(timeout=600000)
+	public void concurrentOperationsKeepTheRepositoryConsistent() throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(WRITERS+READERS+1);
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Future<?>> futures = new ArrayList<>();
+		try{
+			for(int i=0; i<WRITERS; i++) futures.add(executor.submit(writer(start, i)));
+			for(int i=0; i<READERS; i++) futures.add(executor.submit(reader(start, i)));
+			futures.add(executor.submit(syncer(start)));
+			start.countDown();
+			for(final Future<?> future: futures) future.get();
+		} finally{
+			executor.shutdownNow();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		if(!errors.isEmpty()){
+			for(final Throwable t: errors) t.printStackTrace();
+			fail(errors.size()+" operations failed, the first with "+errors.peek());
+		}
+		assertConsistent();
+		LOG.info("Repository lock: {}.", repository.getLockStatistics());
+		
+		//A last sync converges to the heads of the source:
+		final Map<String,Head> heads = new HashMap<>();
+		for(int i=0; i<BRANCHES; i+=2) heads.put("feature/b"+i, new Head(1L, System.currentTimeMillis()));
+		source.setHeads(heads);
+		project.synchronizeBranches(log("final")).get();
+		assertConsistent();
+		final Set<String> expected = new TreeSet<>();
+		for(int i=0; i<BRANCHES; i+=2) expected.add("f-b"+i);
+		assertEquals(expected, projectNames());
+	}
+
+	private Callable<Void> writer(final CountDownLatch start, final int seed) {
+		return new Callable<Void>(){
+			@Override
+			public Void call() throws Exception {
+				final Random random = new Random(seed);
+				start.await();
+				for(int i=0; i<OPERATIONS; i++){
+					final BranchId branch = branches.get(random.nextInt(branches.size()));
+					try{
+						switch(random.nextInt(4)){
+						case 0:
+						case 1:
+							final SubProject<FreeStyleProject> created = repository.createNewSubProject(branch);
+							assertEquals(branch, created.branch());
+							break;
+						case 2:
+							repository.delete(branch);
+							break;
+						default:
+							//Deletion via the item, as done by the UI:
+							final FreeStyleProject item = project.getItem(branch.toProjectName());
+							if(item!=null) project.onDeleted(item);
+							repository.registerLastChange(branch, new Date());
+						}
+					} catch(final ProjectAlreadyExixtsException | ProjectDoesNotExixtException e){
+						//Expected when another thread was faster.
+					} catch(final Throwable t){
+						errors.add(t);
+					}
+				}
+				return null;
+			}};
+	}
+
+	private Callable<Void> reader(final CountDownLatch start, final int seed) {
+		return new Callable<Void>(){
+			@Override
+			public Void call() throws Exception {
+				final Random random = new Random(seed);
+				start.await();
+				for(int i=0; i<OPERATIONS*10; i++){
+					try{
+						final BranchId branch = branches.get(random.nextInt(branches.size()));
+						try{
+							final SubProject<FreeStyleProject> subProject = repository.getProject(branch);
+							assertEquals(branch, subProject.branch());
+							assertNotNull(subProject.delegate());
+						} catch(final ProjectDoesNotExixtException e){
+							//Not created yet or deleted.
+						}
+						final Set<BranchId> seen = new HashSet<>();
+						for(final SubProject<FreeStyleProject> p: repository.getProjects()){
+							assertTrue("Duplicate project "+p, seen.add(p.branch()));
+						}
+						final Set<String> names = new HashSet<>();
+						for(final FreeStyleProject p: project.getItems()){
+							assertTrue("Duplicate item "+p.getName(), names.add(p.getName()));
+						}
+						for(final BranchId b: repository.getBranches()){
+							assertNotNull(b);
+						}
+					} catch(final Throwable t){
+						errors.add(t);
+					}
+				}
+				return null;
+			}};
+	}
+
+	private Callable<Void> syncer(final CountDownLatch start) {
+		return new Callable<Void>(){
+			@Override
+			public Void call() throws Exception {
+				final Random random = new Random(-1L);
+				start.await();
+				for(int i=0; i<SYNCS; i++){
+					final Map<String,Head> heads = new HashMap<>();
+					for(int b=0; b<BRANCHES; b++){
+						if(random.nextBoolean()) heads.put("feature/b"+b, new Head(i, System.currentTimeMillis()));
+					}
+					source.setHeads(heads);
+					try{
+						project.synchronizeBranches(log("sync-"+i)).get();
+					} catch(final Throwable t){
+						errors.add(t);
+					}
+				}
+				return null;
+			}};
+	}
+
+	/**
+	 * Every registered sub-project has a complete directory and is reachable as item, and every 
+	 * directory in the branches directory belongs to a registered sub-project.
+	 */
+	private void assertConsistent() throws Exception {
+		final Set<String> registered = new TreeSet<>();
+		for(final SubProject<FreeStyleProject> subProject: repository.getProjects()){
+			assertTrue("Duplicate project "+subProject, registered.add(subProject.name()));
+			assertTrue("Incomplete directory of "+subProject, 
+					Files.isRegularFile(subProject.rootDirectory().resolve("config.xml")));
+			assertSame(subProject.delegate(), project.getItem(subProject.name()));
+		}
+		final Set<String> directories = new TreeSet<>();
+		final File[] files = project.getBranchesDir().listFiles();
+		if(files!=null) for(final File dir: files){
+			if(dir.isDirectory()){
+				assertTrue("Half-created directory "+dir, new File(dir, "config.xml").isFile());
+				directories.add(dir.getName());
+			}
+		}
+		assertEquals("Lost or orphaned sub-projects.", registered, directories);
+		assertEquals(registered, projectNames());
+	}
+
+	private Set<String> projectNames() {
+		final Set<String> names = new TreeSet<>();
+		for(final FreeStyleProject p: project.getItems()) assertTrue(names.add(p.getName()));
+		return names;
+	}
+
+	private Path log(final String name) {
+		return new File(project.getRootDir(), name+".log").toPath();
+	}
+
+}
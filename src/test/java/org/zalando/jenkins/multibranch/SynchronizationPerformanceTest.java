@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+import hudson.model.FreeStyleProject;
+import hudson.model.Items;
+
+import java.io.File;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zalando.jenkins.multibranch.util.Duration;
+
+/**
+ * Measures the synchronization and startup of a {@link FreeStyleMultiBranchProject} against a 
+ * {@link SyntheticSCMSource} and a {@link SyntheticJenkinsHome}. The defaults keep the test fast; 
+ * larger runs are configured with system properties, e.g. 
+ * {@code -Dorg.zalando.jenkins.multibranch.SynchronizationPerformanceTest.heads=100000}.
+ */
+public class SynchronizationPerformanceTest {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(SynchronizationPerformanceTest.class);
+	
+	private static final String PREFIX = SynchronizationPerformanceTest.class.getName();
+	
+	private static final int HEADS = Integer.getInteger(PREFIX+".heads", 1000).intValue();
+	private static final int CHURN_PERCENT = Integer.getInteger(PREFIX+".churnPercent", 5).intValue();
+	private static final Duration MEAN_AGE = Duration.of(
+			Long.getLong(PREFIX+".meanAgeDays", 30L).longValue(), TimeUnit.DAYS);
+	private static final long FETCH_LATENCY_MILLIS = Long.getLong(PREFIX+".fetchLatencyMillis", 200L).longValue();
+	private static final int BRANCHES = Integer.getInteger(PREFIX+".branches", 100).intValue();
+	private static final int BUILDS = Integer.getInteger(PREFIX+".builds", 10).intValue();
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Test(timeout=1800000)
+	public void fullAndIncrementalSync() throws Exception {
+		final FreeStyleMultiBranchProject project = j.jenkins.createProject(FreeStyleMultiBranchProject.class, "sync");
+		final SyntheticSCMSource source = new SyntheticSCMSource("synthetic");
+		source.setFetchLatency(FETCH_LATENCY_MILLIS);
+		project.setSCMSource(source);
+		final SyntheticHeads heads = new SyntheticHeads(HEADS, MEAN_AGE, 1L);
+		
+		source.setHeads(heads.heads());
+		final Duration full = sync(project, "full");
+		assertFalse(project.getItems().isEmpty());
+		
+		source.setHeads(heads.churn(CHURN_PERCENT/100d));
+		final Duration incremental = sync(project, "incremental");
+		
+		final Duration unchanged = sync(project, "unchanged");
+		
+		LOG.info(format("{} heads (mean age {}, fetch latency {} ms), {} sub-projects: "
+				+ "full sync {}, incremental sync after {}% churn {}, sync without changes {}.", 
+				HEADS, MEAN_AGE, FETCH_LATENCY_MILLIS, project.getItems().size(), 
+				full, CHURN_PERCENT, incremental, unchanged));
+	}
+
+	@Test(timeout=1800000)
+	public void loadFromDisk() throws Exception {
+		final FreeStyleMultiBranchProject prototype = j.jenkins.createProject(FreeStyleMultiBranchProject.class, "prototype");
+		prototype.setSCMSource(new SyntheticSCMSource("synthetic"));
+		final File dir = SyntheticJenkinsHome.write(prototype, "loaded", BRANCHES, BUILDS);
+		
+		final long heapBefore = HeapMeter.usedHeap();
+		final Date start = new Date();
+		final FreeStyleMultiBranchProject project = (FreeStyleMultiBranchProject) Items.load(j.jenkins, dir);
+		j.jenkins.putItem(project);
+		assertEquals(BRANCHES, project.getItems().size());
+		final Duration loadTime = Duration.since(start);
+		final long heapAfter = HeapMeter.usedHeap();
+		
+		final Date buildsStart = new Date();
+		long builds = 0;
+		for(final FreeStyleProject branch: project.getItems()) builds += branch.getBuilds().size();
+		final Duration buildsTime = Duration.since(buildsStart);
+		final long heapWithBuilds = HeapMeter.usedHeap();
+		assertEquals((long) BRANCHES*BUILDS, builds);
+		
+		LOG.info(format("Loading {} branches with {} builds each took {} ({} KiB heap per branch), "
+				+ "loading their builds took {} ({} KiB heap per build).", 
+				BRANCHES, BUILDS, loadTime, (heapAfter-heapBefore)/BRANCHES/1024, 
+				buildsTime, (heapWithBuilds-heapAfter)/Math.max(1L, builds)/1024));
+	}
+
+	private static Duration sync(final FreeStyleMultiBranchProject project, final String name) throws Exception {
+		final Date start = new Date();
+		project.synchronizeBranches(new File(project.getRootDir(), name+".log").toPath()).get();
+		return Duration.since(start);
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.zalando.jenkins.multibranch.SyntheticSCMSource.Head;
+import org.zalando.jenkins.multibranch.util.Duration;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Generates the heads of a synthetic repository. The ages of the branches (time since their last 
+ * change) are exponentially distributed with the given mean, so most branches are stale and a few 
+ * are active, as in real repositories. {@link #churn(double)} simulates the changes between two 
+ * fetches.
+ */
+public final class SyntheticHeads {
+	
+	private final Random random;
+	private final Map<String,Head> heads = new HashMap<>();
+	private int nextBranch;
+	private long nextRevision = 1L;
+	
+	public SyntheticHeads(final int count, final Duration meanAge, final long seed) {
+		random = new Random(seed);
+		final long now = System.currentTimeMillis();
+		for(int i=0; i<count; i++){
+			final long age = (long) (-Math.log(1d-random.nextDouble()) * meanAge.toMillis());
+			heads.put(newBranchName(), new Head(nextRevision++, now-age));
+		}
+	}
+
+	public synchronized ImmutableMap<String,Head> heads(){
+		return ImmutableMap.copyOf(heads);
+	}
+
+	/**
+	 * Changes the given fraction of the branches: One half of them is deleted and replaced by as 
+	 * many new branches, the other half gets a new revision. All changes happen now.
+	 * @return the heads after the changes.
+	 */
+	public synchronized ImmutableMap<String,Head> churn(final double fraction){
+		final long now = System.currentTimeMillis();
+		final List<String> names = new ArrayList<>(heads.keySet());
+		Collections.shuffle(names, random);
+		final int changed = (int) Math.round(names.size()*fraction);
+		for(int i=0; i<changed; i++){
+			final String name = names.get(i);
+			if(i%2==0){
+				heads.remove(name);
+				heads.put(newBranchName(), new Head(nextRevision++, now));
+			}
+			else heads.put(name, new Head(nextRevision++, now));
+		}
+		return heads();
+	}
+
+	private String newBranchName() {
+		return "feature/b"+(nextBranch++);
+	}
+
+}
@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Writes the directory of a multi-branch project with M branches of K builds each, the way 
+ * Jenkins would have left it, so that loading it from disk can be measured without running 
+ * any builds.
+ */
+public final class SyntheticJenkinsHome {
+	
+	private static final String PROJECT_CONFIG = 
+			"<?xml version='1.0' encoding='UTF-8'?>\n"+
+			"<project>\n"+
+			"  <keepDependencies>false</keepDependencies>\n"+
+			"  <properties/>\n"+
+			"  <scm class=\"hudson.scm.NullSCM\"/>\n"+
+			"  <canRoam>true</canRoam>\n"+
+			"  <disabled>false</disabled>\n"+
+			"  <triggers/>\n"+
+			"  <concurrentBuild>false</concurrentBuild>\n"+
+			"  <builders/>\n"+
+			"  <publishers/>\n"+
+			"  <buildWrappers/>\n"+
+			"</project>\n";
+	
+	private static final String BUILD_RECORD = 
+			"<?xml version='1.0' encoding='UTF-8'?>\n"+
+			"<build>\n"+
+			"  <actions/>\n"+
+			"  <queueId>%d</queueId>\n"+
+			"  <timestamp>%d</timestamp>\n"+
+			"  <startTime>%d</startTime>\n"+
+			"  <result>SUCCESS</result>\n"+
+			"  <duration>60000</duration>\n"+
+			"  <charset>UTF-8</charset>\n"+
+			"  <keepLog>false</keepLog>\n"+
+			"  <builtOn></builtOn>\n"+
+			"  <hudsonVersion>1.618</hudsonVersion>\n"+
+			"</build>\n";
+	
+	private SyntheticJenkinsHome(){}
+
+	/**
+	 * Creates a project directory next to the prototype, with the configuration and template of 
+	 * the prototype, and the given number of branches and builds.
+	 * @return the directory of the new project. It is not loaded yet.
+	 */
+	public static File write(final AbstractMultiBranchProject<?,?> prototype, final String name, 
+			final int branches, final int builds) throws IOException {
+		prototype.save();
+		final File dir = new File(prototype.getRootDir().getParentFile(), name);
+		FileUtils.copyFile(new File(prototype.getRootDir(), "config.xml"), new File(dir, "config.xml"));
+		FileUtils.copyDirectory(prototype.getTemplateDir(), new File(dir, prototype.getTemplateDir().getName()));
+		final Path branchesDir = new File(dir, "branches").toPath();
+		final long now = System.currentTimeMillis();
+		int queueId = 1;
+		for(int b=0; b<branches; b++){
+			final Path branchDir = branchesDir.resolve("f-b"+b);
+			Files.createDirectories(branchDir);
+			Files.write(branchDir.resolve("config.xml"), PROJECT_CONFIG.getBytes(UTF_8));
+			Files.write(branchDir.resolve("nextBuildNumber"), Integer.toString(builds+1).getBytes(UTF_8));
+			for(int n=1; n<=builds; n++){
+				final Path buildDir = branchDir.resolve("builds").resolve(Integer.toString(n));
+				Files.createDirectories(buildDir);
+				final long timestamp = now - TimeUnit.HOURS.toMillis((long) (builds-n)*branches + b);
+				Files.write(buildDir.resolve("build.xml"), 
+						String.format(BUILD_RECORD, queueId++, timestamp, timestamp).getBytes(UTF_8));
+				Files.write(buildDir.resolve("log"), ("Build "+n+" of f-b"+b+"\nFinished: SUCCESS\n").getBytes(UTF_8));
+			}
+		}
+		return dir;
+	}
+
+}
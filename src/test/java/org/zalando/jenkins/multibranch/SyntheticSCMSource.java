@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch;
+
+import hudson.Extension;
+import hudson.model.TaskListener;
+import hudson.scm.NullSCM;
+import hudson.scm.SCM;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import jenkins.scm.api.SCMHead;
+import jenkins.scm.api.SCMHeadObserver;
+import jenkins.scm.api.SCMRevision;
+import jenkins.scm.api.SCMSource;
+import jenkins.scm.api.SCMSourceCriteria;
+import jenkins.scm.api.SCMSourceDescriptor;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * An SCM source without a repository: Its heads are set by the test, e.g. generated by 
+ * {@link SyntheticHeads}. Each head has a revision number and a last modification time, which 
+ * is reported to the criteria. Fetches can be delayed to simulate a remote repository.
+ */
+public final class SyntheticSCMSource extends SCMSource {
+
+	//Guarded by this:
+	private transient Map<String,Head> heads = new HashMap<>();
+	//Part of the configuration, so that the shared fetch cache does not return outdated heads:
+	private long generation;
+	private transient volatile long fetchLatencyMillis;
+	
+	public SyntheticSCMSource(final String id) {
+		super(id);
+	}
+
+	/**
+	 * Replaces all heads.
+	 */
+	public synchronized void setHeads(final Map<String,Head> heads){
+		this.heads = new HashMap<>(heads);
+		generation++;
+	}
+	
+	/**
+	 * Delays every fetch, like a remote repository would.
+	 */
+	public void setFetchLatency(final long millis){
+		fetchLatencyMillis = millis;
+	}
+	
+	public synchronized ImmutableMap<String,Head> getHeads(){
+		return heads==null ? ImmutableMap.<String,Head>of() : ImmutableMap.copyOf(heads);
+	}
+
+	@Override
+	protected void retrieve(final SCMHeadObserver observer, final TaskListener listener) 
+			throws IOException, InterruptedException {
+		if(fetchLatencyMillis>0L) Thread.sleep(fetchLatencyMillis);
+		final SCMSourceCriteria criteria = getCriteria();
+		for(final Map.Entry<String,Head> e: getHeads().entrySet()){
+			final String name = e.getKey();
+			final Head head = e.getValue();
+			if(criteria==null || criteria.isHead(probe(name, head), listener)){
+				final SCMHead scmHead = new SCMHead(name);
+				observer.observe(scmHead, new Revision(scmHead, head.revision));
+			}
+		}
+	}
+
+	@Override
+	public SCM build(final SCMHead head, final SCMRevision revision) {
+		return new NullSCM();
+	}
+
+	private static SCMSourceCriteria.Probe probe(final String name, final Head head){
+		return new SCMSourceCriteria.Probe(){
+			private static final long serialVersionUID = 1L;
+			@Override
+			public String name() {
+				return name;
+			}
+			@Override
+			public long lastModified() {
+				return head.lastModified;
+			}
+			@Override
+			public boolean exists(final String path) {
+				return false;
+			}};
+	}
+	
+	public static final class Head{
+		private final long revision;
+		private final long lastModified;
+		public Head(final long revision, final long lastModified) {
+			this.revision = revision;
+			this.lastModified = lastModified;
+		}
+		public long revision() {
+			return revision;
+		}
+		public long lastModified() {
+			return lastModified;
+		}
+	}
+	
+	public static final class Revision extends SCMRevision{
+		private static final long serialVersionUID = 1L;
+		private final long number;
+		public Revision(final SCMHead head, final long number) {
+			super(head);
+			this.number = number;
+		}
+		@Override
+		public boolean equals(final Object obj) {
+			if(!(obj instanceof Revision)) return false;
+			final Revision other = (Revision) obj;
+			return getHead().equals(other.getHead()) && number==other.number;
+		}
+		@Override
+		public int hashCode() {
+			return getHead().hashCode()*31 + (int) number;
+		}
+		@Override
+		public String toString() {
+			return Long.toString(number);
+		}
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends SCMSourceDescriptor{
+		@Override
+		public String getDisplayName() {
+			return "Synthetic";
+		}
+	}
+
+}
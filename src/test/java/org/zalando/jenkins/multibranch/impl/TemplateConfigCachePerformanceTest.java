@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.jenkins.multibranch.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.zalando.jenkins.multibranch.util.FormattingUtils.format;
+import hudson.BulkChange;
+import hudson.XmlFile;
+import hudson.model.FreeStyleProject;
+import hudson.model.Items;
+import hudson.tasks.Shell;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zalando.jenkins.multibranch.FreeStyleMultiBranchProject;
+
+/**
+ * Applies the template configuration of a multi-branch project to 500 projects, once by 
+ * reading and parsing the configuration file for each project as before 
+ * ({@link XmlFile#unmarshal(Object)}), and once from the {@link TemplateConfigCache}. The best 
+ * of several rounds is reported per branch. Both ways must produce the same configuration.
+ */
+public class TemplateConfigCachePerformanceTest {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(TemplateConfigCachePerformanceTest.class);
+	
+	private static final String PREFIX = TemplateConfigCachePerformanceTest.class.getName();
+	
+	private static final int BRANCHES = Integer.getInteger(PREFIX+".branches", 500).intValue();
+	private static final int ROUNDS = Integer.getInteger(PREFIX+".rounds", 5).intValue();
+	private static final int BUILDERS = 20;
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Test(timeout=1800000)
+	public void cachedTemplateIsAppliedWithoutParsing() throws Exception {
+		final FreeStyleMultiBranchProject project = j.jenkins.createProject(FreeStyleMultiBranchProject.class, "template-config");
+		final FreeStyleProject template = project.getTemplate();
+		template.setDescription("Configured by the template.");
+		for(int i=0; i<BUILDERS; i++) template.getBuildersList().add(new Shell("echo step "+i));
+		template.save();
+		final File configFile = new File(project.getTemplateDir(), SubProjectFactoryImpl.CONFIG_FILE_NAME);
+		final XmlFile xmlFile = new XmlFile(Items.XSTREAM, configFile);
+		final TemplateConfigCache cache = new TemplateConfigCache(configFile.toPath());
+		
+		final List<FreeStyleProject> targets = new ArrayList<>(BRANCHES);
+		for(int i=0; i<BRANCHES; i++) targets.add(j.createFreeStyleProject("f-b"+i));
+		
+		long uncached = Long.MAX_VALUE;
+		long cached = Long.MAX_VALUE;
+		for(int round=0; round<ROUNDS; round++){
+			long start = System.nanoTime();
+			for(final FreeStyleProject target: targets){
+				final BulkChange bulkChange = new BulkChange(target);
+				try{
+					xmlFile.unmarshal(target);
+				} finally{bulkChange.abort();}
+			}
+			uncached = Math.min(uncached, System.nanoTime()-start);
+			assertConfigured(targets);
+			
+			start = System.nanoTime();
+			for(final FreeStyleProject target: targets){
+				final BulkChange bulkChange = new BulkChange(target);
+				try{
+					cache.unmarshal(target);
+				} finally{bulkChange.abort();}
+			}
+			cached = Math.min(cached, System.nanoTime()-start);
+			assertConfigured(targets);
+		}
+		
+		LOG.info(format("Applying the template to {} branches (best of {} rounds): parsing the file each time "
+				+ "{} microseconds per branch, from the cache {} microseconds per branch.", 
+				BRANCHES, ROUNDS, TimeUnit.NANOSECONDS.toMicros(uncached/BRANCHES), 
+				TimeUnit.NANOSECONDS.toMicros(cached/BRANCHES)));
+	}
+
+	private static void assertConfigured(final List<FreeStyleProject> targets) {
+		for(final FreeStyleProject target: targets){
+			assertEquals("Configured by the template.", target.getDescription());
+			assertEquals(BUILDERS, target.getBuildersList().size());
+		}
+	}
+
+}